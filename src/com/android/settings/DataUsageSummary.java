@@ -73,7 +73,6 @@ import android.net.INetworkStatsService;
 import android.net.INetworkStatsSession;
 import android.net.NetworkPolicy;
 import android.net.NetworkPolicyManager;
-import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.TrafficStats;
@@ -126,13 +125,17 @@ import android.widget.TabHost.TabContentFactory;
 import android.widget.TabHost.TabSpec;
 import android.widget.TabWidget;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.android.internal.telephony.PhoneConstants;
 import com.android.settings.drawable.InsetBoundsDrawable;
+import com.android.settings.net.AppUsageSummary;
 import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
+import com.android.settings.net.DataUsageArchive;
 import com.android.settings.net.DataUsageMeteredSettings;
 import com.android.settings.net.NetworkPolicyEditor;
+import com.android.settings.net.StatsRefreshScheduler;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
 import com.android.settings.net.UidDetailProvider;
@@ -144,7 +147,6 @@ import com.google.android.collect.Lists;
 import libcore.util.Objects;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
@@ -180,16 +182,23 @@ public class DataUsageSummary extends Fragment {
     private static final String TAG_CONFIRM_APP_RESTRICT = "confirmAppRestrict";
     private static final String TAG_CONFIRM_AUTO_SYNC_CHANGE = "confirmAutoSyncChange";
     private static final String TAG_APP_DETAILS = "appDetails";
+    private static final String TAG_TOP_APPS = "topApps";
 
     private static final int LOADER_CHART_DATA = 2;
     private static final int LOADER_SUMMARY = 3;
 
+    /** Cycles of each network included in an export. */
+    private static final int EXPORT_CYCLES = 6;
+    /** Apps listed after an export. */
+    private static final int EXPORT_TOP_APPS = 10;
+
     private INetworkManagementService mNetworkService;
     private INetworkStatsService mStatsService;
     private NetworkPolicyManager mPolicyManager;
     private ConnectivityManager mConnService;
 
     private INetworkStatsSession mStatsSession;
+    private StatsRefreshScheduler mRefreshScheduler;
 
     private static final String PREF_FILE = "data_usage";
     private static final String PREF_SHOW_WIFI = "show_wifi";
@@ -259,6 +268,12 @@ public class DataUsageSummary extends Fragment {
 
     private UidDetailProvider mUidDetailProvider;
 
+    /** Export under way, see {@link #exportUsage()}. */
+    private boolean mExporting;
+    /** Finished export, shown once the fragment resumes. */
+    private DataUsageArchive.TopApps mPendingTopApps;
+    private String mPendingTopAppsPath;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -286,6 +301,8 @@ public class DataUsageSummary extends Fragment {
             getActivity().finish();
         }
 
+        mRefreshScheduler = new StatsRefreshScheduler(mStatsService);
+
         try {
             mStatsSession = mStatsService.openSession();
         } catch (RemoteException e) {
@@ -420,27 +437,20 @@ public class DataUsageSummary extends Fragment {
         // selected network, and binds chart, cycles and detail list.
         updateTabs();
 
-        // kick off background task to update stats
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                try {
-                    // wait a few seconds before kicking off
-                    Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
-                    mStatsService.forceUpdate();
-                } catch (InterruptedException e) {
-                } catch (RemoteException e) {
-                }
-                return null;
-            }
+        // ask for fresh stats if what we're showing may be out of date
+        mRefreshScheduler.schedule(mStatsUpdatedListener);
 
-            @Override
-            protected void onPostExecute(Void result) {
-                if (isAdded()) {
-                    updateBody();
-                }
-            }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        if (mPendingTopApps != null) {
+            TopAppsFragment.show(this, mPendingTopApps, mPendingTopAppsPath);
+            mPendingTopApps = null;
+            mPendingTopAppsPath = null;
+        }
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mRefreshScheduler.cancel();
     }
 
     @Override
@@ -494,6 +504,10 @@ public class DataUsageSummary extends Fragment {
             metered.setVisible(false);
         }
 
+        final MenuItem export = menu.findItem(R.id.data_usage_menu_export);
+        export.setVisible(!appDetailMode);
+        export.setEnabled(!mExporting);
+
         final MenuItem help = menu.findItem(R.id.data_usage_menu_help);
         String helpUrl;
         if (!TextUtils.isEmpty(helpUrl = getResources().getString(R.string.help_url_data_usage))) {
@@ -553,6 +567,10 @@ public class DataUsageSummary extends Fragment {
                         R.string.data_usage_metered_title, null, this, 0);
                 return true;
             }
+            case R.id.data_usage_menu_export: {
+                exportUsage();
+                return true;
+            }
             case R.id.data_usage_menu_auto_sync: {
                 if (ActivityManager.isUserAMonkey()) {
                     Log.d("SyncState", "ignoring monkey's attempt to flip global sync state");
@@ -583,6 +601,82 @@ public class DataUsageSummary extends Fragment {
         super.onDestroy();
     }
 
+    /**
+     * Export per-app usage of each available network over its last
+     * {@link #EXPORT_CYCLES} cycles, then show the top apps across them.
+     */
+    private void exportUsage() {
+        final Context context = getActivity();
+        final DataUsageArchive archive = new DataUsageArchive(context);
+        if (hasReadyMobileRadio(context)) {
+            final NetworkTemplate template = buildTemplateMobileAll(
+                    getActiveSubscriberId(context));
+            archive.addSource(TAB_MOBILE, template, mPolicyEditor.getPolicy(template));
+        }
+        if (hasWifiRadio(context)) {
+            final NetworkTemplate template = buildTemplateWifiWildcard();
+            archive.addSource(TAB_WIFI, template, mPolicyEditor.getPolicy(template));
+        }
+        if (hasEthernet(context)) {
+            final NetworkTemplate template = buildTemplateEthernet();
+            archive.addSource(TAB_ETHERNET, template, mPolicyEditor.getPolicy(template));
+        }
+
+        mExporting = true;
+        getActivity().invalidateOptionsMenu();
+
+        final UidDetailProvider provider = mUidDetailProvider;
+        final int currentUserId = ActivityManager.getCurrentUser();
+        new AsyncTask<Void, Void, DataUsageArchive.TopApps>() {
+            @Override
+            protected DataUsageArchive.TopApps doInBackground(Void... params) {
+                // separate session, since ours closes with the fragment
+                INetworkStatsSession session = null;
+                try {
+                    session = mStatsService.openSession();
+                    if (!archive.export(session, EXPORT_CYCLES)) {
+                        return null;
+                    }
+                } catch (RemoteException e) {
+                    return null;
+                } finally {
+                    TrafficStats.closeQuietly(session);
+                }
+                final DataUsageArchive.TopApps result = archive.readTopApps(
+                        EXPORT_TOP_APPS, EXPORT_CYCLES, currentUserId);
+                if (result != null) {
+                    // resolve labels here, getUidDetail() may block
+                    for (int i = 0; i < result.keys.length; i++) {
+                        final UidDetail detail = provider.getUidDetail(result.keys[i], true);
+                        result.labels[i] = detail != null ? detail.label
+                                : Integer.toString(result.keys[i]);
+                    }
+                }
+                return result;
+            }
+
+            @Override
+            protected void onPostExecute(DataUsageArchive.TopApps result) {
+                mExporting = false;
+                if (!isAdded()) return;
+
+                getActivity().invalidateOptionsMenu();
+
+                if (result == null) {
+                    Toast.makeText(getActivity(), R.string.data_usage_export_failed,
+                            Toast.LENGTH_SHORT).show();
+                } else if (isResumed()) {
+                    TopAppsFragment.show(DataUsageSummary.this, result,
+                            archive.getCsvFile().getPath());
+                } else {
+                    // state may already be saved, show it once we're back
+                    mPendingTopApps = result;
+                    mPendingTopAppsPath = archive.getCsvFile().getPath();
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
     /**
      * Build and assign {@link LayoutTransition} to various containers. Should
      * only be assigned after initial layout is complete.
@@ -1201,6 +1295,19 @@ public class DataUsageSummary extends Fragment {
         ensureLayoutTransitions();
     }
 
+    private final StatsRefreshScheduler.Listener mStatsUpdatedListener =
+            new StatsRefreshScheduler.Listener() {
+        @Override
+        public void onStatsUpdated() {
+            if (!isAdded() || mTemplate == null) return;
+
+            // only the loaded stats changed; reload chart, which rebinds
+            // cycles and kicks off the detail summary when finished.
+            getLoaderManager().restartLoader(LOADER_CHART_DATA,
+                    ChartDataLoader.buildArgs(mTemplate, mCurrentApp), mChartDataCallbacks);
+        }
+    };
+
     private final LoaderCallbacks<ChartData> mChartDataCallbacks = new LoaderCallbacks<
             ChartData>() {
         @Override
@@ -1232,15 +1339,15 @@ public class DataUsageSummary extends Fragment {
         }
     };
 
-    private final LoaderCallbacks<NetworkStats> mSummaryCallbacks = new LoaderCallbacks<
-            NetworkStats>() {
+    private final LoaderCallbacks<AppUsageSummary> mSummaryCallbacks = new LoaderCallbacks<
+            AppUsageSummary>() {
         @Override
-        public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
+        public Loader<AppUsageSummary> onCreateLoader(int id, Bundle args) {
             return new SummaryForAllUidLoader(getActivity(), mStatsSession, args);
         }
 
         @Override
-        public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
+        public void onLoadFinished(Loader<AppUsageSummary> loader, AppUsageSummary data) {
             final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
                     POLICY_REJECT_METERED_BACKGROUND);
             mAdapter.bindStats(data, restrictedUids);
@@ -1248,7 +1355,7 @@ public class DataUsageSummary extends Fragment {
         }
 
         @Override
-        public void onLoaderReset(Loader<NetworkStats> loader) {
+        public void onLoaderReset(Loader<AppUsageSummary> loader) {
             mAdapter.bindStats(null, new int[0]);
             updateEmptyVisible();
         }
@@ -1481,7 +1588,16 @@ public class DataUsageSummary extends Fragment {
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
 
-        private ArrayList<AppItem> mItems = Lists.newArrayList();
+        private AppUsageSummary mSummary;
+        private final SparseBooleanArray mRestricted = new SparseBooleanArray();
+        /** Restricted uids without any usage, listed after {@link #mSummary}. */
+        private int[] mRestrictedOnly = new int[0];
+        private int mRestrictedOnlyCount;
+
+        /** Rows created so far, see {@link #getItem(int)}. */
+        private AppItem[] mItems = new AppItem[0];
+        /** Rows from the previous bind, reused when nothing changed. */
+        private final SparseArray<AppItem> mPreviousItems = new SparseArray<AppItem>();
         private long mLargest;
 
         public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
@@ -1490,76 +1606,89 @@ public class DataUsageSummary extends Fragment {
         }
 
         /**
-         * Bind the given {@link NetworkStats}, or {@code null} to clear list.
+         * Bind the given {@link AppUsageSummary}, or {@code null} to clear list.
          */
-        public void bindStats(NetworkStats stats, int[] restrictedUids) {
-            mItems.clear();
-
-            final int currentUserId = ActivityManager.getCurrentUser();
-            final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-            NetworkStats.Entry entry = null;
-            final int size = stats != null ? stats.size() : 0;
-            for (int i = 0; i < size; i++) {
-                entry = stats.getValues(i, entry);
-
-                // Decide how to collapse items together
-                final int uid = entry.uid;
-                final int collapseKey;
-                if (UserHandle.isApp(uid)) {
-                    if (UserHandle.getUserId(uid) == currentUserId) {
-                        collapseKey = uid;
-                    } else {
-                        collapseKey = UidDetailProvider.buildKeyForUser(UserHandle.getUserId(uid));
-                    }
-                } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                    collapseKey = uid;
-                } else {
-                    collapseKey = android.os.Process.SYSTEM_UID;
-                }
-
-                AppItem item = knownItems.get(collapseKey);
-                if (item == null) {
-                    item = new AppItem(collapseKey);
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
+        public void bindStats(AppUsageSummary summary, int[] restrictedUids) {
+            mPreviousItems.clear();
+            for (AppItem item : mItems) {
+                if (item != null) {
+                    mPreviousItems.put(item.key, item);
                 }
-                item.addUid(uid);
-                item.total += entry.rxBytes + entry.txBytes;
             }
 
+            mSummary = summary;
+            final int summarySize = summary != null ? summary.size() : 0;
+
+            final int currentUserId = ActivityManager.getCurrentUser();
+            mRestricted.clear();
+            if (mRestrictedOnly.length < restrictedUids.length) {
+                mRestrictedOnly = new int[restrictedUids.length];
+            }
+            mRestrictedOnlyCount = 0;
             for (int uid : restrictedUids) {
                 // Only splice in restricted state for current user
                 if (UserHandle.getUserId(uid) != currentUserId) continue;
+                if (mRestricted.get(uid)) continue;
 
-                AppItem item = knownItems.get(uid);
-                if (item == null) {
-                    item = new AppItem(uid);
-                    item.total = -1;
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
+                mRestricted.put(uid, true);
+                if (summary == null || summary.indexOfKey(uid) < 0) {
+                    mRestrictedOnly[mRestrictedOnlyCount++] = uid;
                 }
-                item.restricted = true;
             }
 
-            Collections.sort(mItems);
-            mLargest = (mItems.size() > 0) ? mItems.get(0).total : 0;
+            final int count = summarySize + mRestrictedOnlyCount;
+            mItems = new AppItem[count];
+            mLargest = count > 0 ? getTotal(0) : 0;
             notifyDataSetChanged();
         }
 
+        private int getKey(int position) {
+            final int summarySize = mSummary != null ? mSummary.size() : 0;
+            return position < summarySize ? mSummary.getKey(position)
+                    : mRestrictedOnly[position - summarySize];
+        }
+
+        private long getTotal(int position) {
+            final int summarySize = mSummary != null ? mSummary.size() : 0;
+            return position < summarySize ? mSummary.getTotal(position) : -1;
+        }
+
         @Override
         public int getCount() {
-            return mItems.size();
+            return mItems.length;
         }
 
+        /**
+         * Rows are only turned into {@link AppItem}s once shown or clicked.
+         */
         @Override
         public Object getItem(int position) {
-            return mItems.get(position);
+            AppItem item = mItems[position];
+            if (item == null) {
+                final int key = getKey(position);
+                final long total = getTotal(position);
+                final boolean restricted = mRestricted.get(key);
+                final boolean inSummary = mSummary != null && position < mSummary.size();
+
+                item = mPreviousItems.get(key);
+                if (item == null || item.total != total || item.restricted != restricted
+                        || (inSummary ? !mSummary.hasUids(position, item.uids)
+                                : item.uids.size() != 0)) {
+                    item = new AppItem(key);
+                    item.total = total;
+                    item.restricted = restricted;
+                    if (inSummary) {
+                        mSummary.addUidsTo(position, item);
+                    }
+                }
+                mItems[position] = item;
+            }
+            return item;
         }
 
         @Override
         public long getItemId(int position) {
-            return mItems.get(position).key;
+            return getKey(position);
         }
 
         @Override
@@ -1580,7 +1709,7 @@ public class DataUsageSummary extends Fragment {
                     android.R.id.progress);
 
             // kick off async load of app details
-            final AppItem item = mItems.get(position);
+            final AppItem item = (AppItem) getItem(position);
             UidDetailTask.bindView(mProvider, item, convertView);
 
             if (item.restricted && item.total <= 0) {
@@ -2031,6 +2160,58 @@ public class DataUsageSummary extends Fragment {
         }
     }
 
+    /**
+     * Dialog listing the apps that used the most data over the exported
+     * cycles, see {@link DataUsageArchive}.
+     */
+    public static class TopAppsFragment extends DialogFragment {
+        private static final String EXTRA_LABELS = "labels";
+        private static final String EXTRA_TOTALS = "totals";
+        private static final String EXTRA_PATH = "path";
+
+        public static void show(DataUsageSummary parent, DataUsageArchive.TopApps topApps,
+                String path) {
+            if (!parent.isAdded()) return;
+
+            final Bundle args = new Bundle();
+            args.putCharSequenceArray(EXTRA_LABELS, topApps.labels);
+            args.putLongArray(EXTRA_TOTALS, topApps.totals);
+            args.putString(EXTRA_PATH, path);
+
+            final TopAppsFragment dialog = new TopAppsFragment();
+            dialog.setArguments(args);
+            dialog.setTargetFragment(parent, 0);
+            dialog.show(parent.getFragmentManager(), TAG_TOP_APPS);
+        }
+
+        @Override
+        public Dialog onCreateDialog(Bundle savedInstanceState) {
+            final Context context = getActivity();
+            final CharSequence[] labels = getArguments().getCharSequenceArray(EXTRA_LABELS);
+            final long[] totals = getArguments().getLongArray(EXTRA_TOTALS);
+            final String path = getArguments().getString(EXTRA_PATH);
+
+            final AlertDialog.Builder builder = new AlertDialog.Builder(context);
+            builder.setTitle(context.getString(R.string.data_usage_top_apps_title, EXPORT_CYCLES));
+
+            final StringBuilder message = new StringBuilder();
+            if (labels.length == 0) {
+                message.append(context.getString(R.string.data_usage_empty));
+            }
+            for (int i = 0; i < labels.length; i++) {
+                message.append(context.getString(R.string.data_usage_top_apps_item, labels[i],
+                        Formatter.formatFileSize(context, totals[i])));
+                message.append('\n');
+            }
+            message.append('\n');
+            message.append(context.getString(R.string.data_usage_export_saved, path));
+            builder.setMessage(message);
+            builder.setPositiveButton(android.R.string.ok, null);
+
+            return builder.create();
+        }
+    }
+
     /**
      * Dialog to request user confirmation before setting
      * {@link #POLICY_REJECT_METERED_BACKGROUND}.
@@ -28,6 +28,7 @@ import android.content.*;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.hardware.display.HdmiManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.os.SystemProperties;
@@ -108,8 +109,47 @@ public class DisplaySettings extends SettingsPreferenceFragment implements
 
     private boolean mOriginWindowSet = false;
 
+    private final OverscanWriter mOverscanWriter = new OverscanWriter();
+
     private static final int MENU_ID_HDMI_RESET = Menu.FIRST;
 
+    /**
+     * Collapses bursts of picker changes into at most one
+     * {@link HdmiManager#setPosition} per display frame.
+     */
+    private class OverscanWriter implements Choreographer.FrameCallback {
+        private boolean mScheduled;
+
+        void requestWrite() {
+            if (!mScheduled) {
+                mScheduled = true;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+
+        /** Write any pending position now */
+        void flush() {
+            if (mScheduled) {
+                cancel();
+                doFrame(0);
+            }
+        }
+
+        /** Drop any pending position */
+        void cancel() {
+            if (mScheduled) {
+                mScheduled = false;
+                Choreographer.getInstance().removeFrameCallback(this);
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mScheduled = false;
+            mHdmiManager.setPosition(mNewLeft, mNewTop, mNewRight, mNewBottom);
+        }
+    }
+
     private final RotationPolicy.RotationPolicyListener mRotationPolicyListener =
             new RotationPolicy.RotationPolicyListener() {
         @Override
@@ -372,6 +412,7 @@ public class DisplaySettings extends SettingsPreferenceFragment implements
 
         RotationPolicy.unregisterRotationPolicyListener(getActivity(),
                 mRotationPolicyListener);
+        mOverscanWriter.flush();
     }
 
     @Override
@@ -511,7 +552,8 @@ public class DisplaySettings extends SettingsPreferenceFragment implements
     private void showPositionDialog(Context context) {
         initPosition();
         initSteps();
-        // sysfs are written as progress is changed for real-time effect
+        // sysfs are written as progress is changed for real-time effect,
+        // coalesced to one write per frame by mOverscanWriter
         // cancel obviously reverts back to previous values
         final int[] left_rate = {getCurrentLeftRate()};
         final int[] top_rate = {getCurrentTopRate()};
@@ -525,6 +567,7 @@ public class DisplaySettings extends SettingsPreferenceFragment implements
         builder.setNegativeButton(R.string.dlg_cancel, new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
+                mOverscanWriter.cancel();
                 mHdmiManager.setPosition(mLeft, mTop, mRight, mBottom);
                 mHdmiManager.savePosition(mLeft, mTop, mRight, mBottom);
             }
@@ -532,6 +575,7 @@ public class DisplaySettings extends SettingsPreferenceFragment implements
         builder.setOnCancelListener(new DialogInterface.OnCancelListener() {
             @Override
             public void onCancel(DialogInterface dialog) {
+                mOverscanWriter.cancel();
                 mHdmiManager.setPosition(mLeft, mTop, mRight, mBottom);
                 mHdmiManager.savePosition(mLeft, mTop, mRight, mBottom);
             }
@@ -539,19 +583,13 @@ public class DisplaySettings extends SettingsPreferenceFragment implements
         builder.setPositiveButton(R.string.dlg_ok, new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
+                mOverscanWriter.flush();
                 mHdmiManager.savePosition(mNewLeft, mNewTop, mNewRight, mNewBottom);
                 mLeft = mNewLeft;
                 mTop = mNewTop;
                 mRight = mNewRight;
                 mBottom = mNewBottom;
-                Settings.Secure.putInt(getActivity().getContentResolver(),
-                        Settings.Secure.HDMI_OVERSCAN_LEFT, left_rate[0]);
-                Settings.Secure.putInt(getActivity().getContentResolver(),
-                        Settings.Secure.HDMI_OVERSCAN_TOP, top_rate[0]);
-                Settings.Secure.putInt(getActivity().getContentResolver(),
-                        Settings.Secure.HDMI_OVERSCAN_RIGHT, right_rate[0]);
-                Settings.Secure.putInt(getActivity().getContentResolver(),
-                        Settings.Secure.HDMI_OVERSCAN_BOTTOM, bottom_rate[0]);
+                saveOverscanRates(left_rate[0], top_rate[0], right_rate[0], bottom_rate[0]);
             }
         });
         builder.setTitle(R.string.hdmi_overscan_title);
@@ -640,6 +678,33 @@ public class DisplaySettings extends SettingsPreferenceFragment implements
         });
     }
 
+    /**
+     * Persist the four overscan rates in one settings provider transaction,
+     * off the UI thread.
+     */
+    private void saveOverscanRates(int left, int top, int right, int bottom) {
+        final ContentResolver resolver = getActivity().getContentResolver();
+        final ContentValues[] values = new ContentValues[] {
+                overscanValue(Settings.Secure.HDMI_OVERSCAN_LEFT, left),
+                overscanValue(Settings.Secure.HDMI_OVERSCAN_TOP, top),
+                overscanValue(Settings.Secure.HDMI_OVERSCAN_RIGHT, right),
+                overscanValue(Settings.Secure.HDMI_OVERSCAN_BOTTOM, bottom)
+        };
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                resolver.bulkInsert(Settings.Secure.CONTENT_URI, values);
+            }
+        });
+    }
+
+    private static ContentValues overscanValue(String name, int value) {
+        ContentValues cv = new ContentValues(2);
+        cv.put(Settings.NameValueTable.NAME, name);
+        cv.put(Settings.NameValueTable.VALUE, Integer.toString(value));
+        return cv;
+    }
+
     private void zoomOut(NumberPicker picker) {
         switch (picker.getId()) {
             case R.id.left_picker:
@@ -656,7 +721,7 @@ public class DisplaySettings extends SettingsPreferenceFragment implements
                 break;
         }
         Log.d(TAG, "left=" + mNewLeft + " top=" + mNewTop + " right=" + mNewRight + " bottom=" + mNewBottom);
-        mHdmiManager.setPosition(mNewLeft, mNewTop, mNewRight, mNewBottom);
+        mOverscanWriter.requestWrite();
     }
 
     private void zoomIn(NumberPicker picker) {
@@ -675,7 +740,7 @@ public class DisplaySettings extends SettingsPreferenceFragment implements
                 break;
         }
         Log.d(TAG, "left=" + mNewLeft + " top=" + mNewTop + " right=" + mNewRight + " bottom=" + mNewBottom);
-        mHdmiManager.setPosition(mNewLeft, mNewTop, mNewRight, mNewBottom);
+        mOverscanWriter.requestWrite();
     }
 
     @Override
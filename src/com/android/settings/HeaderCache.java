@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.Account;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.INetworkManagementService;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemProperties;
+import android.preference.PreferenceActivity;
+import android.preference.PreferenceActivity.Header;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Process-wide cache of the inputs to {@link Settings#onBuildHeaders}.
+ *
+ * The parsed settings_headers XML, the device features and the binder
+ * lookups that decide which headers are shown don't change while the
+ * process is alive, so they are computed once and shared by every
+ * Settings instance; the device lookups start in the background on the
+ * first launch. Account headers are kept until the set of accounts
+ * actually changes or a package is added, removed or changed (it may be
+ * an authenticator), and only reused under the locale and pane layout
+ * they were built for. Each build gets its own copies of the cached headers
+ * since the build mutates them.
+ */
+final class HeaderCache {
+    private static final String TAG = "HeaderCache";
+
+    private static final Object sLock = new Object();
+
+    private static Locale sTemplateLocale;
+    private static ArrayList<Header> sTemplate;
+
+    private static boolean sDeviceLoaded;
+    private static boolean sHasWifi;
+    private static boolean sHasBluetooth;
+    private static boolean sHasNfc;
+    private static boolean sHasNfcHce;
+    private static boolean sBandwidthControl;
+    private static boolean sAppOpsEnabled;
+
+    private static Account[] sAccounts;
+    private static ArrayList<Header> sAccountHeaders;
+    // Account labels are localized, and the arguments differ between panes.
+    private static Locale sAccountHeadersLocale;
+    private static boolean sAccountHeadersMultiPane;
+    private static boolean sPackageReceiverRegistered;
+
+    private HeaderCache() {
+    }
+
+    /**
+     * Start probing the device on a background thread so the results are
+     * ready (or nearly) by the time the activity builds its headers. The
+     * template is parsed by the activity itself, on the main thread, in
+     * {@link #copyTemplate}.
+     */
+    static void prewarm(Context context) {
+        synchronized (sLock) {
+            if (sDeviceLoaded) {
+                return;
+            }
+        }
+        final Context appContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (sLock) {
+                    ensureDeviceLoadedLocked(appContext);
+                }
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * @return Fresh copies of the headers from R.xml.settings_headers
+     */
+    static List<Header> copyTemplate(PreferenceActivity activity) {
+        synchronized (sLock) {
+            if (isTemplateCurrentLocked(activity)) {
+                return copyOf(sTemplate);
+            }
+        }
+        // parse without the lock, so the main thread doesn't wait behind
+        // the device lookups
+        ArrayList<Header> template = new ArrayList<Header>();
+        activity.loadHeadersFromResource(R.xml.settings_headers, template);
+        synchronized (sLock) {
+            sTemplate = template;
+            sTemplateLocale = activity.getResources().getConfiguration().locale;
+            // account labels may be localized too
+            sAccountHeaders = null;
+            return copyOf(template);
+        }
+    }
+
+    static boolean hasWifi(Context context) {
+        synchronized (sLock) {
+            ensureDeviceLoadedLocked(context);
+            return sHasWifi;
+        }
+    }
+
+    static boolean hasBluetooth(Context context) {
+        synchronized (sLock) {
+            ensureDeviceLoadedLocked(context);
+            return sHasBluetooth;
+        }
+    }
+
+    static boolean hasNfc(Context context) {
+        synchronized (sLock) {
+            ensureDeviceLoadedLocked(context);
+            return sHasNfc;
+        }
+    }
+
+    static boolean hasNfcHostCardEmulation(Context context) {
+        synchronized (sLock) {
+            ensureDeviceLoadedLocked(context);
+            return sHasNfcHce;
+        }
+    }
+
+    static boolean isBandwidthControlEnabled(Context context) {
+        synchronized (sLock) {
+            ensureDeviceLoadedLocked(context);
+            return sBandwidthControl;
+        }
+    }
+
+    static boolean isAppOpsEnabled(Context context) {
+        synchronized (sLock) {
+            ensureDeviceLoadedLocked(context);
+            return sAppOpsEnabled;
+        }
+    }
+
+    /**
+     * Record the current accounts
+     *
+     * @return If they differ from the accounts the cached headers were built for
+     */
+    static boolean onAccountsUpdated(Account[] accounts) {
+        synchronized (sLock) {
+            if (accounts != null && sAccounts != null && Arrays.equals(accounts, sAccounts)) {
+                return false;
+            }
+            sAccounts = accounts == null ? null : accounts.clone();
+            sAccountHeaders = null;
+            return true;
+        }
+    }
+
+    /**
+     * @return Copies of the cached account headers, or null if they need
+     *         rebuilding for this locale and pane layout
+     */
+    static List<Header> getAccountHeaders(Context context, boolean multiPane) {
+        synchronized (sLock) {
+            if (sAccountHeaders == null || sAccountHeadersMultiPane != multiPane
+                    || !context.getResources().getConfiguration().locale.equals(
+                            sAccountHeadersLocale)) {
+                return null;
+            }
+            return copyOf(sAccountHeaders);
+        }
+    }
+
+    static void putAccountHeaders(Context context, List<Header> headers, boolean multiPane) {
+        final boolean registerReceiver;
+        synchronized (sLock) {
+            sAccountHeaders = copyOf(headers);
+            sAccountHeadersLocale = context.getResources().getConfiguration().locale;
+            sAccountHeadersMultiPane = multiPane;
+            registerReceiver = !sPackageReceiverRegistered;
+            sPackageReceiverRegistered = true;
+        }
+        if (registerReceiver) {
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            filter.addDataScheme("package");
+            // lives as long as the cache, i.e. the process
+            context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    invalidateAccounts();
+                }
+            }, filter);
+        }
+    }
+
+    /**
+     * Forget the account headers, e.g. when an authenticator package changes
+     */
+    private static void invalidateAccounts() {
+        synchronized (sLock) {
+            sAccountHeaders = null;
+        }
+    }
+
+    private static boolean isTemplateCurrentLocked(Context context) {
+        return sTemplate != null
+                && context.getResources().getConfiguration().locale.equals(sTemplateLocale);
+    }
+
+    private static void ensureDeviceLoadedLocked(Context context) {
+        if (sDeviceLoaded) {
+            return;
+        }
+        final PackageManager pm = context.getPackageManager();
+        sHasWifi = pm.hasSystemFeature(PackageManager.FEATURE_WIFI);
+        sHasBluetooth = pm.hasSystemFeature(PackageManager.FEATURE_BLUETOOTH);
+        sHasNfc = pm.hasSystemFeature(PackageManager.FEATURE_NFC);
+        sHasNfcHce = pm.hasSystemFeature(PackageManager.FEATURE_NFC_HOST_CARD_EMULATION);
+        sAppOpsEnabled = !"false".equals(SystemProperties.get("ro.permissions.settings", "false"));
+        // keep the header if we can't ask, as before
+        sBandwidthControl = true;
+        final INetworkManagementService netManager = INetworkManagementService.Stub
+                .asInterface(ServiceManager.getService(Context.NETWORKMANAGEMENT_SERVICE));
+        try {
+            sBandwidthControl = netManager.isBandwidthControlEnabled();
+        } catch (RemoteException e) {
+            Log.w(TAG, "Unable to query bandwidth control", e);
+        }
+        sDeviceLoaded = true;
+    }
+
+    private static ArrayList<Header> copyOf(List<Header> headers) {
+        ArrayList<Header> copy = new ArrayList<Header>(headers.size());
+        Parcel parcel = Parcel.obtain();
+        try {
+            for (Header header : headers) {
+                parcel.setDataPosition(0);
+                header.writeToParcel(parcel, 0);
+                parcel.setDataPosition(0);
+                copy.add(Header.CREATOR.createFromParcel(parcel));
+            }
+        } finally {
+            parcel.recycle();
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.os.SystemProperties;
+
+import java.io.PrintWriter;
+
+/**
+ * Hardware and platform capability flags read from system properties.
+ *
+ * The flags behind {@link Utils#hwNoPhone()} and friends are read once into
+ * a bitset instead of on every call. "ro." properties can't change after
+ * boot; the others are re-read lazily after any system property change or
+ * an explicit {@link #invalidate()}.
+ */
+final class PlatformCapabilities {
+    static final int NO_PHONE = 0;
+    static final int NO_BATTERY = 1;
+    static final int NO_SOUND_PARTITION = 2;
+    static final int NO_SOUND_CATEGORY_FEEDBACK = 3;
+    static final int HAS_SCREEN_BRIGHTNESS = 4;
+    static final int HAS_BLUETOOTH = 5;
+    static final int HAS_SCREEN_TIMEOUT = 6;
+    static final int HAS_SCREEN_FONT_SIZE = 7;
+    static final int HAS_SECURITY = 8;
+    static final int HAS_ENCRYPT = 9;
+    static final int HAS_MBX_UI_MODE = 10;
+    static final int HAS_DUAL_DISPLAY_2 = 11;
+    static final int HAS_DUAL_DISPLAY_3 = 12;
+    static final int HAS_HDMI_AUTO_SWITCH = 13;
+    static final int HAS_HDMI_SPDIF = 14;
+    static final int HAS_ETHERNET = 15;
+    static final int NO_DATA_USAGE = 16;
+    static final int NO_SYNC_SETTING = 17;
+    static final int NO_LOCATION = 18;
+    static final int NO_ACCESSIBILITY = 19;
+    static final int NO_ABOUT_DEVICE = 20;
+    static final int HAS_TV_UI_MODE = 21;
+    static final int HAS_CPU_MODE = 22;
+    static final int HAS_DEFAULT_TV_FREQ = 23;
+    static final int HAS_HDMI_CEC = 24;
+    static final int HAS_DRC = 25;
+
+    // indexed by the capability constants above
+    private static final String[] KEYS = {
+        "hw.nophone",
+        "hw.nobattery",
+        "hw.nosoundpartition",
+        "hw.nosoundcategoryfeedback",
+        "ro.screen.has.brightness",
+        "hw.has.bluetooth",
+        "ro.screen.has.timeout",
+        "ro.screen.has.fontsize",
+        "ro.platform.has.security",
+        "ro.platform.has.encrypt",
+        "ro.platform.has.mbxuimode",
+        "ro.vout.dualdisplay2",
+        "ro.vout.dualdisplay3",
+        "ro.hdmi.autoswitch",
+        "ro.hdmi.spdif",
+        "hw.hasethernet",
+        "hw.nodatausage",
+        "hw.nosyncsetting",
+        "hw.nolocation",
+        "hw.noaccessibility",
+        "hw.noaboutdevice",
+        "ro.platform.has.tvuimode",
+        "ro.has.cpu.setting",
+        "ro.platform.has.defaulttvfreq",
+        "ro.platform.has.hdmicec",
+        "ro.platform.has.drc",
+    };
+
+    private static final long DEFAULTS =
+            bit(NO_PHONE) | bit(HAS_SCREEN_BRIGHTNESS) | bit(HAS_BLUETOOTH)
+            | bit(HAS_SCREEN_TIMEOUT) | bit(HAS_SCREEN_FONT_SIZE) | bit(HAS_SECURITY)
+            | bit(HAS_HDMI_AUTO_SWITCH);
+
+    private static final String KEY_1080_SCALE = "ro.platform.has.1080scale";
+
+    private static final long MUTABLE_MASK;
+    static {
+        long mask = 0;
+        for (int i = 0; i < KEYS.length; i++) {
+            if (!KEYS[i].startsWith("ro.")) {
+                mask |= bit(i);
+            }
+        }
+        MUTABLE_MASK = mask;
+    }
+
+    private static final Object sLock = new Object();
+    private static volatile boolean sLoaded;
+    private static volatile boolean sMutableStale;
+    private static volatile long sBits;
+    private static int s1080Scale;
+    private static int sLoads;
+
+    private PlatformCapabilities() {
+    }
+
+    private static long bit(int capability) {
+        return 1L << capability;
+    }
+
+    static boolean has(int capability) {
+        if (!sLoaded || sMutableStale) {
+            load();
+        }
+        return (sBits & bit(capability)) != 0;
+    }
+
+    static int get1080Scale() {
+        if (!sLoaded) {
+            load();
+        }
+        return s1080Scale;
+    }
+
+    /**
+     * Re-read the mutable (non "ro.") properties on next use
+     */
+    static void invalidate() {
+        sMutableStale = true;
+    }
+
+    static void dump(PrintWriter pw) {
+        long bits;
+        synchronized (sLock) {
+            if (!sLoaded || sMutableStale) {
+                load();
+            }
+            bits = sBits;
+            pw.println("PlatformCapabilities (loads=" + sLoads + "):");
+            pw.println("  " + KEY_1080_SCALE + "=" + s1080Scale);
+        }
+        for (int i = 0; i < KEYS.length; i++) {
+            pw.print("  ");
+            pw.print(KEYS[i]);
+            pw.print('=');
+            pw.print((bits & bit(i)) != 0);
+            if ((MUTABLE_MASK & bit(i)) != 0) {
+                pw.print(" (mutable)");
+            }
+            pw.println();
+        }
+    }
+
+    private static void load() {
+        synchronized (sLock) {
+            if (sLoaded && !sMutableStale) {
+                return;
+            }
+            // immutable bits only need reading the first time
+            long readMask = sLoaded ? MUTABLE_MASK : ~0L;
+            long bits = sBits & ~readMask;
+            for (int i = 0; i < KEYS.length; i++) {
+                long b = bit(i);
+                if ((readMask & b) != 0
+                        && SystemProperties.getBoolean(KEYS[i], (DEFAULTS & b) != 0)) {
+                    bits |= b;
+                }
+            }
+            if (!sLoaded) {
+                s1080Scale = SystemProperties.getInt(KEY_1080_SCALE, 0);
+                SystemProperties.addChangeCallback(new Runnable() {
+                    @Override
+                    public void run() {
+                        invalidate();
+                    }
+                });
+            }
+            sBits = bits;
+            sLoads++;
+            sMutableStale = false;
+            sLoaded = true;
+        }
+    }
+}
@@ -52,12 +52,8 @@ import android.content.pm.ResolveInfo;
 import android.graphics.drawable.Drawable;
 import android.nfc.NfcAdapter;
 import android.os.Bundle;
-import android.os.INetworkManagementService;
-import android.os.RemoteException;
-import android.os.ServiceManager;
 import android.os.UserHandle;
 import android.os.UserManager;
-import android.os.SystemProperties;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceFragment;
@@ -113,6 +109,8 @@ import com.android.settings.wifi.WifiEnabler;
 import com.android.settings.wifi.WifiSettings;
 import com.android.settings.wifi.p2p.WifiP2pSettings;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -217,6 +215,9 @@ public class Settings extends PreferenceActivity
             getWindow().setUiOptions(getIntent().getIntExtra(EXTRA_UI_OPTIONS, 0));
         }
 
+        // overlap the header inputs with the rest of onCreate on first launch
+        HeaderCache.prewarm(this);
+
         mAuthenticatorHelper = new AuthenticatorHelper();
         mAuthenticatorHelper.updateAuthDescriptions(this);
         mAuthenticatorHelper.onAccountsUpdated(this, null);
@@ -330,6 +331,12 @@ public class Settings extends PreferenceActivity
         }
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        PlatformCapabilities.dump(writer);
+    }
+
     @Override
     public boolean onIsMultiPane() {
         return false;
@@ -555,7 +562,7 @@ public class Settings extends PreferenceActivity
     @Override
     public void onBuildHeaders(List<Header> headers) {
         if (!onIsHidingHeaders()) {
-            loadHeadersFromResource(R.xml.settings_headers, headers);
+            headers.addAll(HeaderCache.copyTemplate(this));
             updateHeaderList(headers);
         }
     }
@@ -597,12 +604,12 @@ public class Settings extends PreferenceActivity
                 }
             } else if (id == R.id.wifi_settings) {
                 // Remove WiFi Settings if WiFi service is not available.
-                if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_WIFI)) {
+                if (!HeaderCache.hasWifi(this)) {
                     target.remove(i);
                 }
             } else if (id == R.id.bluetooth_settings) {
                 // Remove Bluetooth Settings if Bluetooth service is not available.
-                if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH)) {
+                if (!HeaderCache.hasBluetooth(this)) {
                     target.remove(i);
                 }
             } else if(id == R.id.battery_settings){
@@ -616,14 +623,8 @@ public class Settings extends PreferenceActivity
                 }
 			} else if (id == R.id.data_usage_settings) {
                 // Remove data usage when kernel module not enabled
-                final INetworkManagementService netManager = INetworkManagementService.Stub
-                        .asInterface(ServiceManager.getService(Context.NETWORKMANAGEMENT_SERVICE));
-                try {
-                    if (!netManager.isBandwidthControlEnabled()) {
-                        target.remove(i);
-                    }
-                } catch (RemoteException e) {
-                    // ignored
+                if (!HeaderCache.isBandwidthControlEnabled(this)) {
+                    target.remove(i);
                 }
             } else if (id == R.id.battery_settings) {
                 // Remove battery settings when battery is not available. (e.g. TV)
@@ -641,13 +642,12 @@ public class Settings extends PreferenceActivity
                     target.remove(i);
                 }
             } else if (id == R.id.nfc_payment_settings) {
-                if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_NFC)) {
+                if (!HeaderCache.hasNfc(this)) {
                     target.remove(i);
                 } else {
                     // Only show if NFC is on and we have the HCE feature
                     NfcAdapter adapter = NfcAdapter.getDefaultAdapter(this);
-                    if (!adapter.isEnabled() || !getPackageManager().hasSystemFeature(
-                            PackageManager.FEATURE_NFC_HOST_CARD_EMULATION)) {
+                    if (!HeaderCache.hasNfcHostCardEmulation(this) || !adapter.isEnabled()) {
                         target.remove(i);
                     }
                 }
@@ -660,8 +660,7 @@ public class Settings extends PreferenceActivity
                     target.remove(i);
                 }
             }else if(id == R.id.appops_settings){
-                String opsEnble = SystemProperties.get("ro.permissions.settings", "false");
-                if(opsEnble.equals("false")){
+                if (!HeaderCache.isAppOpsEnabled(this)) {
                     target.remove(i);
                 }
             } else if (id == R.id.superuser) {
@@ -690,6 +689,17 @@ public class Settings extends PreferenceActivity
     }
 
     private int insertAccountsHeaders(List<Header> target, int headerIndex) {
+        List<Header> cached = HeaderCache.getAccountHeaders(this, isMultiPane());
+        if (cached != null) {
+            for (Header header : cached) {
+                mAuthenticatorHelper.preloadDrawableForType(this,
+                        header.extras.getString(ManageAccountsSettings.KEY_ACCOUNT_TYPE));
+                target.add(headerIndex++, header);
+            }
+            listenToAccountUpdates();
+            return headerIndex;
+        }
+
         String[] accountTypes = mAuthenticatorHelper.getEnabledAccountTypes();
         List<Header> accountHeaders = new ArrayList<Header>(accountTypes.length);
         for (String accountType : accountTypes) {
@@ -741,14 +751,19 @@ public class Settings extends PreferenceActivity
             }
         });
 
+        HeaderCache.putAccountHeaders(this, accountHeaders, isMultiPane());
         for (Header header : accountHeaders) {
             target.add(headerIndex++, header);
         }
+        listenToAccountUpdates();
+        return headerIndex;
+    }
+
+    private void listenToAccountUpdates() {
         if (!mListeningToAccountUpdates) {
             AccountManager.get(this).addOnAccountsUpdatedListener(this, null, true);
             mListeningToAccountUpdates = true;
         }
-        return headerIndex;
     }
 
     private boolean updateHomeSettingHeaders(Header header) {
@@ -1147,7 +1162,10 @@ public class Settings extends PreferenceActivity
         // TODO: watch for package upgrades to invalidate cache; see 7206643
         mAuthenticatorHelper.updateAuthDescriptions(this);
         mAuthenticatorHelper.onAccountsUpdated(this, accounts);
-        invalidateHeaders();
+        // the listener fires on registration too; only rebuild if accounts changed
+        if (HeaderCache.onAccountsUpdated(accounts)) {
+            invalidateHeaders();
+        }
     }
 
     public static void requestHomeNotice() {
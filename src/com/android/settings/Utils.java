@@ -41,7 +41,6 @@ import android.net.LinkProperties;
 import android.net.Uri;
 import android.os.BatteryManager;
 import android.os.Bundle;
-import android.os.SystemProperties;
 import android.os.ParcelFileDescriptor;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -328,7 +327,7 @@ public class Utils {
     }
 
     public static boolean isWifiOnly(Context context) {
-        return SystemProperties.getBoolean("hw.nophone", true);
+        return PlatformCapabilities.has(PlatformCapabilities.NO_PHONE);
             /*
         ConnectivityManager cm = (ConnectivityManager)context.getSystemService(
                 Context.CONNECTIVITY_SERVICE);
@@ -502,107 +501,108 @@ public class Utils {
         }
     }
     public static boolean hwNoPhone() {
-        return SystemProperties.getBoolean("hw.nophone", true);
+        return PlatformCapabilities.has(PlatformCapabilities.NO_PHONE);
     }
 
     public static boolean hwNoBattery() {
-        return SystemProperties.getBoolean("hw.nobattery", false);
+        return PlatformCapabilities.has(PlatformCapabilities.NO_BATTERY);
     }
 
     public static boolean hwNoSoundPartition() {
-        return SystemProperties.getBoolean("hw.nosoundpartition", false);
+        return PlatformCapabilities.has(PlatformCapabilities.NO_SOUND_PARTITION);
     }
 
 	public static boolean hwNoSoundCategoryFeedback() {
-		return SystemProperties.getBoolean("hw.nosoundcategoryfeedback", false);
+		return PlatformCapabilities.has(PlatformCapabilities.NO_SOUND_CATEGORY_FEEDBACK);
     }
 
     public static boolean platformHasScreenBrightness() {
-        return SystemProperties.getBoolean("ro.screen.has.brightness", true);
+        return PlatformCapabilities.has(PlatformCapabilities.HAS_SCREEN_BRIGHTNESS);
     }
 
 	public static boolean hwHasBluetooth() {
-		return SystemProperties.getBoolean("hw.has.bluetooth", true);	
+		return PlatformCapabilities.has(PlatformCapabilities.HAS_BLUETOOTH);	
 	}
 	
     public static boolean platformHasScreenTimeout() {
-        return SystemProperties.getBoolean("ro.screen.has.timeout", true);
+        return PlatformCapabilities.has(PlatformCapabilities.HAS_SCREEN_TIMEOUT);
     }
 
     public static boolean platformHasScreenFontSize() {
-        return SystemProperties.getBoolean("ro.screen.has.fontsize", true);
+        return PlatformCapabilities.has(PlatformCapabilities.HAS_SCREEN_FONT_SIZE);
     }
 	
     public static boolean platformHasSecurity() {
-        return SystemProperties.getBoolean("ro.platform.has.security", true);
+        return PlatformCapabilities.has(PlatformCapabilities.HAS_SECURITY);
     }
 
     public static boolean platformHasEncrypt() {
-        return SystemProperties.getBoolean("ro.platform.has.encrypt", false);
+        return PlatformCapabilities.has(PlatformCapabilities.HAS_ENCRYPT);
     }
 
     public static boolean platformHasMbxUiMode() {
-        return SystemProperties.getBoolean("ro.platform.has.mbxuimode", false);
+        return PlatformCapabilities.has(PlatformCapabilities.HAS_MBX_UI_MODE);
     }
 
     public static boolean platformHasHdmiDualDisp() {
-        return SystemProperties.getBoolean("ro.vout.dualdisplay2", false) || SystemProperties.getBoolean("ro.vout.dualdisplay3", false);
+        return PlatformCapabilities.has(PlatformCapabilities.HAS_DUAL_DISPLAY_2)
+                || PlatformCapabilities.has(PlatformCapabilities.HAS_DUAL_DISPLAY_3);
     }
     public static boolean platformHasHdmiAutoSwitch() {
-        return SystemProperties.getBoolean("ro.hdmi.autoswitch", true);
+        return PlatformCapabilities.has(PlatformCapabilities.HAS_HDMI_AUTO_SWITCH);
     }     
     public static boolean platformHasHdmiSpdif() {
-        return SystemProperties.getBoolean("ro.hdmi.spdif", false);
+        return PlatformCapabilities.has(PlatformCapabilities.HAS_HDMI_SPDIF);
     }    
     public static boolean platformHasHdmiSettings() {
         return !platformHasMbxUiMode() && (platformHasHdmiDualDisp() || platformHasHdmiSpdif() || platformHasHdmiAutoSwitch());
     } 
     
     public static boolean hwHasEthernet() {
-        return SystemProperties.getBoolean("hw.hasethernet", false);
+        return PlatformCapabilities.has(PlatformCapabilities.HAS_ETHERNET);
     }
 
 	public static boolean hwNoDataUsage() {
-		return SystemProperties.getBoolean("hw.nodatausage", false);
+		return PlatformCapabilities.has(PlatformCapabilities.NO_DATA_USAGE);
 	}
 
 	public static boolean hwNoSyncSetting() {
-		return SystemProperties.getBoolean("hw.nosyncsetting", false);
+		return PlatformCapabilities.has(PlatformCapabilities.NO_SYNC_SETTING);
 	}
 	
 	public static boolean hwNoLocation() {
-		return SystemProperties.getBoolean("hw.nolocation", false);
+		return PlatformCapabilities.has(PlatformCapabilities.NO_LOCATION);
 	}
 	
 	public static boolean hwNoAccessibility() {
-		return SystemProperties.getBoolean("hw.noaccessibility", false);
+		return PlatformCapabilities.has(PlatformCapabilities.NO_ACCESSIBILITY);
 	}
 	
 	public static boolean hwNoAboutDevice() {
-		return SystemProperties.getBoolean("hw.noaboutdevice", false);
+		return PlatformCapabilities.has(PlatformCapabilities.NO_ABOUT_DEVICE);
 	}
 	public static boolean platformHasTvUiMode() {
-		return SystemProperties.getBoolean("ro.platform.has.tvuimode", false);
+		return PlatformCapabilities.has(PlatformCapabilities.HAS_TV_UI_MODE);
 	}
 	
 	public static int platformHas1080Scale() {
-		return SystemProperties.getInt("ro.platform.has.1080scale", 0);
+		return PlatformCapabilities.get1080Scale();
 	}
 	
 	public static boolean platformHasCpuMode() {
-		return SystemProperties.getBoolean("ro.has.cpu.setting", false);
+		return PlatformCapabilities.has(PlatformCapabilities.HAS_CPU_MODE);
 	}	 
 
 	public static boolean platformHasDefaultTVFreq() {
-        return SystemProperties.getBoolean("ro.platform.has.defaulttvfreq", false);
+        return PlatformCapabilities.has(PlatformCapabilities.HAS_DEFAULT_TV_FREQ);
     }    
     public static boolean platformHasHdmiCECSwitch() {
-        return SystemProperties.getBoolean("ro.platform.has.hdmicec", false);
+        return PlatformCapabilities.has(PlatformCapabilities.HAS_HDMI_CEC);
     }    
     
     public static boolean platformHasDRC()
     {
-            return SystemProperties.getBoolean("ro.platform.has.drc", false);
+            return PlatformCapabilities.has(PlatformCapabilities.HAS_DRC);
     }
 
     /* Used by UserSettings as well. Call this on a non-ui thread. */
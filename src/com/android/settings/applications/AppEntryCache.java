@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * On-disk snapshot of {@link ApplicationsState.AppEntry} labels, sizes and
+ * icon thumbnails, so the app list can be shown straight away on a cold
+ * start instead of reloading every label and icon from its apk.
+ *
+ * A record is only used while the package's apk path and modification
+ * time are unchanged (an update rewrites the apk) and the snapshot was
+ * written under the same locale and density. Cached sizes are shown
+ * immediately but still marked stale so they get recomputed.
+ *
+ * Records are handed to the entries they restore and not kept here, and
+ * the snapshot is only rewritten once something in it has changed.
+ */
+class AppEntryCache {
+    private static final String TAG = "AppEntryCache";
+
+    private static final int VERSION = 1;
+    private static final String FILE_NAME = "app_entries.cache";
+
+    static class Record {
+        String sourceDir;
+        long apkModified;
+        String label;
+        String normalizedLabel;
+        long size;
+        long internalSize;
+        long externalSize;
+        long cacheSize;
+        long codeSize;
+        long dataSize;
+        long externalCodeSize;
+        long externalDataSize;
+        long externalCacheSize;
+        // PNG of the list-sized icon, may be null
+        byte[] icon;
+    }
+
+    private final AtomicFile mFile;
+    private final HashMap<String, Record> mRecords = new HashMap<String, Record>();
+    private String mConfigKey;
+    private boolean mLoaded;
+    // Whether entries were added, removed or resized since the last save.
+    private boolean mDirty;
+
+    AppEntryCache(Context context) {
+        mFile = new AtomicFile(new File(context.getCacheDir(), FILE_NAME));
+    }
+
+    static String configKey(Context context) {
+        Configuration config = context.getResources().getConfiguration();
+        return config.locale + "/" + context.getResources().getDisplayMetrics().densityDpi;
+    }
+
+    /**
+     * Read the snapshot from disk, once. Call off the main thread.
+     */
+    synchronized void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            mConfigKey = in.readUTF();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String pkg = in.readUTF();
+                Record r = new Record();
+                r.sourceDir = in.readUTF();
+                r.apkModified = in.readLong();
+                r.label = in.readUTF();
+                r.normalizedLabel = in.readUTF();
+                r.size = in.readLong();
+                r.internalSize = in.readLong();
+                r.externalSize = in.readLong();
+                r.cacheSize = in.readLong();
+                r.codeSize = in.readLong();
+                r.dataSize = in.readLong();
+                r.externalCodeSize = in.readLong();
+                r.externalDataSize = in.readLong();
+                r.externalCacheSize = in.readLong();
+                int iconLen = in.readInt();
+                if (iconLen > 0) {
+                    r.icon = new byte[iconLen];
+                    in.readFully(r.icon);
+                }
+                mRecords.put(pkg, r);
+            }
+            if (ApplicationsState.DEBUG) Log.i(TAG, "Loaded " + count + " cached entries");
+        } catch (FileNotFoundException e) {
+            // first run
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable app entry cache", e);
+            mRecords.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The cached record for this package if it is still valid
+     */
+    synchronized Record get(Context context, ApplicationInfo info) {
+        if (mRecords.isEmpty()) {
+            return null;
+        }
+        if (!configKey(context).equals(mConfigKey)) {
+            // labels and icons were resolved under another locale or density
+            mRecords.clear();
+            return null;
+        }
+        Record r = mRecords.get(info.packageName);
+        if (r == null || !r.sourceDir.equals(info.sourceDir)) {
+            return null;
+        }
+        long modified = new File(info.sourceDir).lastModified();
+        if (modified == 0 || r.apkModified != modified) {
+            // unmounted, or updated since the snapshot
+            return null;
+        }
+        // the entry holds on to it from here
+        mRecords.remove(info.packageName);
+        return r;
+    }
+
+    /**
+     * Note that the entries no longer match the snapshot on disk.
+     */
+    synchronized void markDirty() {
+        mDirty = true;
+    }
+
+    /**
+     * Write the given entries as the new snapshot if it is out of date.
+     * Call off the main thread.
+     */
+    void save(Context context, ArrayList<ApplicationsState.AppEntry> entries) {
+        if (!needsSave(entries)) {
+            if (ApplicationsState.DEBUG) Log.i(TAG, "Snapshot is current, not saving");
+            return;
+        }
+        final int iconSize = context.getResources().getDimensionPixelSize(
+                android.R.dimen.app_icon_size);
+        final String configKey = configKey(context);
+        final ArrayList<String> packages = new ArrayList<String>(entries.size());
+        final ArrayList<Record> records = new ArrayList<Record>(entries.size());
+        final ArrayList<ApplicationsState.AppEntry> saved
+                = new ArrayList<ApplicationsState.AppEntry>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            ApplicationsState.AppEntry entry = entries.get(i);
+            Record r = new Record();
+            Drawable icon;
+            synchronized (entry) {
+                if (!entry.mounted || entry.label == null) {
+                    continue;
+                }
+                r.sourceDir = entry.info.sourceDir;
+                r.label = entry.label;
+                r.normalizedLabel = entry.getNormalizedLabel();
+                r.size = entry.size;
+                r.internalSize = entry.internalSize;
+                r.externalSize = entry.externalSize;
+                r.cacheSize = entry.cacheSize;
+                r.codeSize = entry.codeSize;
+                r.dataSize = entry.dataSize;
+                r.externalCodeSize = entry.externalCodeSize;
+                r.externalDataSize = entry.externalDataSize;
+                r.externalCacheSize = entry.externalCacheSize;
+                r.icon = entry.cachedIcon;
+                icon = entry.icon;
+            }
+            r.apkModified = entry.apkFile.lastModified();
+            if (r.icon == null && icon instanceof BitmapDrawable) {
+                // not kept on the entry, rewrites are rare enough to redo it
+                r.icon = compressIcon(((BitmapDrawable) icon).getBitmap(), iconSize);
+            }
+            packages.add(entry.info.packageName);
+            records.add(r);
+            if (r.icon != null) {
+                saved.add(entry);
+            }
+        }
+
+        synchronized (this) {
+            mConfigKey = configKey;
+            mRecords.clear();
+            mLoaded = true;
+            mDirty = false;
+            if (!writeLocked(packages, records)) {
+                mDirty = true;
+                return;
+            }
+        }
+        for (int i = 0; i < saved.size(); i++) {
+            ApplicationsState.AppEntry entry = saved.get(i);
+            synchronized (entry) {
+                entry.iconSaved = true;
+            }
+        }
+    }
+
+    /**
+     * @return Whether the snapshot is missing a change or an icon that
+     *         has since been loaded
+     */
+    private boolean needsSave(ArrayList<ApplicationsState.AppEntry> entries) {
+        synchronized (this) {
+            if (mDirty) {
+                return true;
+            }
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            ApplicationsState.AppEntry entry = entries.get(i);
+            synchronized (entry) {
+                if (entry.mounted && !entry.iconSaved && entry.icon instanceof BitmapDrawable) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean writeLocked(ArrayList<String> packages, ArrayList<Record> records) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            out.writeUTF(mConfigKey);
+            out.writeInt(records.size());
+            for (int i = 0; i < records.size(); i++) {
+                Record r = records.get(i);
+                out.writeUTF(packages.get(i));
+                out.writeUTF(r.sourceDir);
+                out.writeLong(r.apkModified);
+                out.writeUTF(r.label);
+                out.writeUTF(r.normalizedLabel);
+                out.writeLong(r.size);
+                out.writeLong(r.internalSize);
+                out.writeLong(r.externalSize);
+                out.writeLong(r.cacheSize);
+                out.writeLong(r.codeSize);
+                out.writeLong(r.dataSize);
+                out.writeLong(r.externalCodeSize);
+                out.writeLong(r.externalDataSize);
+                out.writeLong(r.externalCacheSize);
+                if (r.icon != null) {
+                    out.writeInt(r.icon.length);
+                    out.write(r.icon);
+                } else {
+                    out.writeInt(0);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write app entry cache", e);
+            mFile.failWrite(fos);
+            return false;
+        }
+    }
+
+    private static byte[] compressIcon(Bitmap bitmap, int size) {
+        if (bitmap == null) {
+            return null;
+        }
+        Bitmap scaled = bitmap.getWidth() > size || bitmap.getHeight() > size
+                ? Bitmap.createScaledBitmap(bitmap, size, size, true)
+                : bitmap;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        scaled.compress(Bitmap.CompressFormat.PNG, 100, out);
+        if (scaled != bitmap) {
+            scaled.recycle();
+        }
+        return out.toByteArray();
+    }
+}
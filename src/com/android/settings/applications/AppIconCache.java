@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.pm.PackageItemInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.Map;
+
+/**
+ * Process-wide cache of app and component icons, decoded to the size they
+ * are shown at in lists.
+ *
+ * The cache is bounded by bitmap bytes and shared by the application list,
+ * the running services list and data usage, so an icon loaded by one of
+ * them is free for the others. It is trimmed when the system asks for
+ * memory back.
+ */
+public final class AppIconCache implements ComponentCallbacks2 {
+    private static final String TAG = "AppIconCache";
+    private static final boolean DEBUG = false;
+
+    private static final Object sLock = new Object();
+    private static AppIconCache sInstance;
+
+    private final Resources mResources;
+    private final LruCache<String, Bitmap> mCache;
+    private int mIconSize;
+    private int mDensityDpi;
+
+    public static AppIconCache getInstance(Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new AppIconCache(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private AppIconCache(Context context) {
+        mResources = context.getResources();
+        mIconSize = mResources.getDimensionPixelSize(android.R.dimen.app_icon_size);
+        mDensityDpi = mResources.getDisplayMetrics().densityDpi;
+        ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        final int maxBytes = am.getMemoryClass() * 1024 * 1024 / 16;
+        mCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        context.registerComponentCallbacks(this);
+    }
+
+    private static String keyFor(PackageItemInfo info) {
+        return info.packageName + '/' + info.name;
+    }
+
+    /**
+     * @return The icon if it is already cached, without loading it
+     */
+    public Drawable peekIcon(PackageItemInfo info) {
+        Bitmap bitmap = mCache.get(keyFor(info));
+        return bitmap != null ? new BitmapDrawable(mResources, bitmap) : null;
+    }
+
+    /**
+     * @return The list-sized icon, loading it from its package if needed
+     */
+    public Drawable getIcon(PackageItemInfo info, PackageManager pm) {
+        final String key = keyFor(info);
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap == null) {
+            Drawable icon = info.loadIcon(pm);
+            bitmap = toBitmap(icon);
+            if (bitmap == null) {
+                // nothing we can rasterize, use it as it is
+                return icon;
+            }
+            mCache.put(key, bitmap);
+            if (DEBUG) Log.i(TAG, "Loaded " + key + ", cache " + mCache.size() + " bytes");
+        }
+        return new BitmapDrawable(mResources, bitmap);
+    }
+
+    /**
+     * Add an icon that was decoded elsewhere, e.g. from a saved thumbnail
+     */
+    Drawable putIcon(PackageItemInfo info, Bitmap bitmap) {
+        mCache.put(keyFor(info), bitmap);
+        return new BitmapDrawable(mResources, bitmap);
+    }
+
+    /**
+     * @return Whether loading more icons would start evicting others
+     */
+    public boolean isFull() {
+        return mCache.size() >= mCache.maxSize() * 3 / 4;
+    }
+
+    /**
+     * Forget the icons of a package that was changed or removed
+     */
+    public void invalidate(String packageName) {
+        final String prefix = packageName + '/';
+        for (Map.Entry<String, Bitmap> e : mCache.snapshot().entrySet()) {
+            if (e.getKey().startsWith(prefix)) {
+                mCache.remove(e.getKey());
+            }
+        }
+    }
+
+    private Bitmap toBitmap(Drawable icon) {
+        if (icon == null) {
+            return null;
+        }
+        final int size = mIconSize;
+        if (icon instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+            if (bitmap != null && bitmap.getWidth() <= size && bitmap.getHeight() <= size) {
+                return bitmap;
+            }
+        }
+        int width = icon.getIntrinsicWidth();
+        int height = icon.getIntrinsicHeight();
+        if (width <= 0 || height <= 0 || width > size || height > size) {
+            width = size;
+            height = size;
+        }
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        icon.setBounds(0, 0, width, height);
+        icon.draw(canvas);
+        canvas.setBitmap(null);
+        return bitmap;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            mCache.evictAll();
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW) {
+            mCache.trimToSize(mCache.maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        mCache.evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        if (newConfig.densityDpi != mDensityDpi) {
+            mDensityDpi = newConfig.densityDpi;
+            mIconSize = mResources.getDimensionPixelSize(android.R.dimen.app_icon_size);
+            mCache.evictAll();
+        }
+    }
+}
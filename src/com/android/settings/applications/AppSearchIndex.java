@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+
+/**
+ * Prefix search over the entries of an app list.
+ *
+ * An entry matches a prefix when any word of its normalized label, or its
+ * package name, starts with it. Every such word start is kept as a key in
+ * one sorted array, so a query is a binary search plus the matching range.
+ * When the user keeps typing, the new prefix is answered by narrowing the
+ * previous result. Package changes update the keys of just that entry.
+ *
+ * Used from the UI thread and the list filter's worker thread.
+ */
+class AppSearchIndex {
+    private static class Key {
+        final String mText;
+        final AppEntry mEntry;
+
+        Key(String text, AppEntry entry) {
+            mText = text;
+            mEntry = entry;
+        }
+    }
+
+    private static final Comparator<Key> KEY_COMPARATOR = new Comparator<Key>() {
+        @Override
+        public int compare(Key lhs, Key rhs) {
+            return lhs.mText.compareTo(rhs.mText);
+        }
+    };
+
+    private final ArrayList<Key> mKeys = new ArrayList<Key>();
+    // normalized label each entry's keys were made from, since the entry's
+    // label may have changed by the time its keys are removed
+    private final IdentityHashMap<AppEntry, String> mIndexedLabels
+            = new IdentityHashMap<AppEntry, String>();
+    private ArrayList<AppEntry> mEntries;
+    // position of each entry in mEntries, built when first needed
+    private IdentityHashMap<AppEntry, Integer> mPositions;
+
+    private String mLastPrefix;
+    private ArrayList<AppEntry> mLastResult;
+
+    /**
+     * @return Whether the index was built for this list
+     */
+    synchronized boolean isIndexing(ArrayList<AppEntry> entries) {
+        return mEntries == entries;
+    }
+
+    /**
+     * Index a whole new list
+     */
+    synchronized void setEntries(ArrayList<AppEntry> entries) {
+        mKeys.clear();
+        mIndexedLabels.clear();
+        for (int i = 0; i < entries.size(); i++) {
+            addKeysLocked(entries.get(i), false);
+        }
+        Collections.sort(mKeys, KEY_COMPARATOR);
+        mEntries = entries;
+        mPositions = null;
+        mLastPrefix = null;
+        mLastResult = null;
+    }
+
+    /**
+     * Follow a single change made to the indexed list, see
+     * {@link ApplicationsState.Callbacks#onEntryChanged}
+     */
+    synchronized void onEntryChanged(ArrayList<AppEntry> entries, AppEntry entry,
+            int oldPosition, int newPosition) {
+        if (mEntries == null) {
+            return;
+        }
+        if (oldPosition >= 0 && newPosition >= 0) {
+            // a move only changes positions, unless it was relabeled
+            if (!entry.getNormalizedLabel().equals(mIndexedLabels.get(entry))) {
+                removeKeysLocked(entry);
+                addKeysLocked(entry, true);
+            }
+        } else {
+            if (oldPosition >= 0) {
+                removeKeysLocked(entry);
+            }
+            if (newPosition >= 0) {
+                addKeysLocked(entry, true);
+            }
+        }
+        mEntries = entries;
+        mPositions = null;
+        mLastPrefix = null;
+        mLastResult = null;
+    }
+
+    /**
+     * @param prefix Normalized prefix, see {@link ApplicationsState#normalize}
+     * @return The matching entries, in list order
+     */
+    synchronized ArrayList<AppEntry> query(String prefix) {
+        ArrayList<AppEntry> result;
+        if (mLastResult != null && prefix.startsWith(mLastPrefix)) {
+            // typing on: only what matched before can still match
+            result = new ArrayList<AppEntry>();
+            for (int i = 0; i < mLastResult.size(); i++) {
+                AppEntry entry = mLastResult.get(i);
+                if (matches(entry, prefix)) {
+                    result.add(entry);
+                }
+            }
+        } else {
+            result = rangeQueryLocked(prefix);
+        }
+        mLastPrefix = prefix;
+        mLastResult = result;
+        return result;
+    }
+
+    private ArrayList<AppEntry> rangeQueryLocked(String prefix) {
+        IdentityHashMap<AppEntry, Boolean> found = new IdentityHashMap<AppEntry, Boolean>();
+        int i = Collections.binarySearch(mKeys, new Key(prefix, null), KEY_COMPARATOR);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        for (; i < mKeys.size() && mKeys.get(i).mText.startsWith(prefix); i++) {
+            found.put(mKeys.get(i).mEntry, Boolean.TRUE);
+        }
+        if (mPositions == null) {
+            mPositions = new IdentityHashMap<AppEntry, Integer>(mEntries.size() * 2);
+            for (int j = 0; j < mEntries.size(); j++) {
+                mPositions.put(mEntries.get(j), j);
+            }
+        }
+        final IdentityHashMap<AppEntry, Integer> positions = mPositions;
+        ArrayList<AppEntry> result = new ArrayList<AppEntry>(found.size());
+        for (AppEntry entry : found.keySet()) {
+            // the list may have dropped it before we were told
+            if (positions.containsKey(entry)) {
+                result.add(entry);
+            }
+        }
+        Collections.sort(result, new Comparator<AppEntry>() {
+            @Override
+            public int compare(AppEntry lhs, AppEntry rhs) {
+                return positions.get(lhs) - positions.get(rhs);
+            }
+        });
+        return result;
+    }
+
+    static boolean matches(AppEntry entry, String prefix) {
+        String label = entry.getNormalizedLabel();
+        return label.startsWith(prefix) || label.indexOf(" " + prefix) != -1
+                || packageKey(entry).startsWith(prefix);
+    }
+
+    private static String packageKey(AppEntry entry) {
+        return entry.info.packageName.toLowerCase(Locale.ROOT);
+    }
+
+    private void addKeysLocked(AppEntry entry, boolean keepSorted) {
+        String label = entry.getNormalizedLabel();
+        mIndexedLabels.put(entry, label);
+        for (int i = 0; i < label.length(); i++) {
+            if (i == 0 || label.charAt(i - 1) == ' ') {
+                addKeyLocked(new Key(label.substring(i), entry), keepSorted);
+            }
+        }
+        addKeyLocked(new Key(packageKey(entry), entry), keepSorted);
+    }
+
+    private void addKeyLocked(Key key, boolean keepSorted) {
+        if (!keepSorted) {
+            mKeys.add(key);
+            return;
+        }
+        int i = Collections.binarySearch(mKeys, key, KEY_COMPARATOR);
+        mKeys.add(i >= 0 ? i : -i - 1, key);
+    }
+
+    private void removeKeysLocked(AppEntry entry) {
+        String label = mIndexedLabels.remove(entry);
+        if (label == null) {
+            return;
+        }
+        for (int i = 0; i < label.length(); i++) {
+            if (i == 0 || label.charAt(i - 1) == ' ') {
+                removeKeyLocked(label.substring(i), entry);
+            }
+        }
+        removeKeyLocked(packageKey(entry), entry);
+    }
+
+    private void removeKeyLocked(String text, AppEntry entry) {
+        int i = Collections.binarySearch(mKeys, new Key(text, null), KEY_COMPARATOR);
+        if (i < 0) {
+            return;
+        }
+        // equal keys are adjacent, find the one for this entry
+        while (i > 0 && mKeys.get(i - 1).mText.equals(text)) {
+            i--;
+        }
+        for (; i < mKeys.size() && mKeys.get(i).mText.equals(text); i++) {
+            if (mKeys.get(i).mEntry == entry) {
+                mKeys.remove(i);
+                return;
+            }
+        }
+    }
+}
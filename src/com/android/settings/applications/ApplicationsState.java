@@ -2,6 +2,7 @@ package com.android.settings.applications;
 
 import android.app.Application;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -10,6 +11,9 @@ import android.content.pm.IPackageStatsObserver;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageStats;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Handler;
@@ -30,7 +34,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -49,6 +57,14 @@ public class ApplicationsState {
         public void onPackageIconChanged();
         public void onPackageSizeChanged(String packageName);
         public void onAllSizesComputed();
+        // One entry was inserted into (oldPosition -1), removed from
+        // (newPosition -1) or moved within the session's last list; apps
+        // is that list, changed in place on the main thread.  Readers on
+        // other threads synchronize on it.
+        public void onEntryChanged(ArrayList<AppEntry> apps, AppEntry entry,
+                int oldPosition, int newPosition);
+        // The running storage totals changed, see getSizeTotals().
+        public void onSizeTotalsChanged();
     }
 
     public static interface AppFilter {
@@ -85,6 +101,54 @@ public class ApplicationsState {
         // for purposes of cleaning them up in the app details UI.
         long externalCacheSize;
     }
+
+    /**
+     * Sizes summed over a set of entries.  Only sizes that have been
+     * computed are included.
+     */
+    public static class SizeTotals extends SizeInfo {
+        int count;
+        long size;
+        long internalSize;
+        long externalSize;
+
+        SizeTotals() {
+        }
+
+        SizeTotals(SizeTotals other) {
+            set(other);
+        }
+
+        void set(SizeTotals other) {
+            count = other.count;
+            size = other.size;
+            internalSize = other.internalSize;
+            externalSize = other.externalSize;
+            cacheSize = other.cacheSize;
+            codeSize = other.codeSize;
+            dataSize = other.dataSize;
+            externalCodeSize = other.externalCodeSize;
+            externalDataSize = other.externalDataSize;
+            externalCacheSize = other.externalCacheSize;
+        }
+
+        void add(AppEntry entry, int sign) {
+            count += sign;
+            if (entry.size < 0) {
+                // not computed yet, or invalid
+                return;
+            }
+            size += sign * entry.size;
+            internalSize += sign * Math.max(entry.internalSize, 0);
+            externalSize += sign * Math.max(entry.externalSize, 0);
+            cacheSize += sign * entry.cacheSize;
+            codeSize += sign * entry.codeSize;
+            dataSize += sign * entry.dataSize;
+            externalCodeSize += sign * entry.externalCodeSize;
+            externalDataSize += sign * entry.externalDataSize;
+            externalCacheSize += sign * entry.externalCacheSize;
+        }
+    }
     
     public static class AppEntry extends SizeInfo {
         final File apkFile;
@@ -112,6 +176,15 @@ public class ApplicationsState {
         String externalSizeStr;
         boolean sizeStale;
         long sizeLoadStart;
+        // compressed icon thumbnail from the on-disk entry cache, dropped
+        // once it has been decoded
+        byte[] cachedIcon;
+        // Whether the on-disk entry cache has an icon for this entry.
+        boolean iconSaved;
+        // Whether this entry's sizes are in the running totals, and the
+        // TOTALS_FILTERS (by bit) it was counted under.
+        boolean sizeCounted;
+        int sizeFilters;
 
         String normalizedLabel;
 
@@ -123,6 +196,28 @@ public class ApplicationsState {
             this.sizeStale = true;
             ensureLabel(context);
         }
+
+        AppEntry(ApplicationInfo info, long id, AppEntryCache.Record cached) {
+            apkFile = new File(info.sourceDir);
+            this.id = id;
+            this.info = info;
+            this.mounted = true;
+            this.label = cached.label;
+            this.normalizedLabel = cached.normalizedLabel;
+            this.size = cached.size;
+            this.internalSize = cached.internalSize;
+            this.externalSize = cached.externalSize;
+            this.cacheSize = cached.cacheSize;
+            this.codeSize = cached.codeSize;
+            this.dataSize = cached.dataSize;
+            this.externalCodeSize = cached.externalCodeSize;
+            this.externalDataSize = cached.externalDataSize;
+            this.externalCacheSize = cached.externalCacheSize;
+            this.cachedIcon = cached.icon;
+            this.iconSaved = cached.icon != null;
+            // show the last known sizes but still recompute them
+            this.sizeStale = true;
+        }
         
         void ensureLabel(Context context) {
             if (this.label == null || !this.mounted) {
@@ -140,7 +235,7 @@ public class ApplicationsState {
         boolean ensureIconLocked(Context context, PackageManager pm) {
             if (this.icon == null) {
                 if (this.apkFile.exists()) {
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = loadIconLocked(context, pm);
                     return true;
                 } else {
                     this.mounted = false;
@@ -152,12 +247,43 @@ public class ApplicationsState {
                 // its icon.
                 if (this.apkFile.exists()) {
                     this.mounted = true;
-                    this.icon = this.info.loadIcon(pm);
+                    this.cachedIcon = null;
+                    this.iconSaved = false;
+                    this.icon = AppIconCache.getInstance(context).getIcon(this.info, pm);
                     return true;
                 }
             }
             return false;
         }
+
+        private Drawable loadIconLocked(Context context, PackageManager pm) {
+            AppIconCache cache = AppIconCache.getInstance(context);
+            Drawable icon = cache.peekIcon(this.info);
+            if (icon != null) {
+                return icon;
+            }
+            if (this.cachedIcon != null) {
+                Bitmap bitmap = BitmapFactory.decodeByteArray(
+                        this.cachedIcon, 0, this.cachedIcon.length);
+                this.cachedIcon = null;
+                if (bitmap != null) {
+                    return cache.putIcon(this.info, bitmap);
+                }
+                this.iconSaved = false;
+            }
+            return cache.getIcon(this.info, pm);
+        }
+
+        /**
+         * Pick up the icon from the shared cache if it's there, without
+         * loading anything.
+         */
+        boolean peekIconLocked(Context context) {
+            if (this.icon == null && this.mounted) {
+                this.icon = AppIconCache.getInstance(context).peekIcon(this.info);
+            }
+            return this.icon != null;
+        }
     }
 
     public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
@@ -263,8 +389,14 @@ public class ApplicationsState {
         }
     };
 
+    // Filters that running size totals are kept for.
+    static final AppFilter[] TOTALS_FILTERS = new AppFilter[] {
+        THIRD_PARTY_FILTER, ON_SD_CARD_FILTER, DISABLED_FILTER, ALL_ENABLED_FILTER
+    };
+
     final Context mContext;
     final PackageManager mPm;
+    final AppEntryCache mEntryCache;
     final int mRetrieveFlags;
     PackageIntentReceiver mPackageIntentReceiver;
 
@@ -272,15 +404,43 @@ public class ApplicationsState {
     boolean mHaveDisabledApps;
 
     // Information about all applications.  Synchronize on mEntriesMap
-    // to protect access to these.
+    // to protect access to these.  mEntriesMap itself may also be read
+    // without the lock, and getEntrySnapshot() gives a lock-free view of
+    // mAppEntries, so UI thread lookups don't wait behind the loader.
     final ArrayList<Session> mSessions = new ArrayList<Session>();
     final ArrayList<Session> mRebuildingSessions = new ArrayList<Session>();
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
-    final HashMap<String, AppEntry> mEntriesMap = new HashMap<String, AppEntry>();
+    final ConcurrentHashMap<String, AppEntry> mEntriesMap
+            = new ConcurrentHashMap<String, AppEntry>();
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
+    // Copy of mAppEntries, dropped whenever it changes.
+    volatile AppEntry[] mEntrySnapshot;
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
     long mCurId = 1;
-    String mCurComputingSizePkg;
+    // Packages with a size request in flight -> uptime it was sent at.
+    final HashMap<String, Long> mSizeRequests = new HashMap<String, Long>();
+    // Where the next size scan of mAppEntries continues from.
+    int mSizeCursor;
+    // Size request latency since the last pass completed.
+    int mSizeRequestCount;
+    long mSizeLatencyTotal;
+    long mSizeLatencyMax;
+    int mSizeTimeouts;
+    long mSizePassStart;
+    // Packages recently shown in a list, most recent last.  Has its own
+    // lock since it's filled from getView() while holding an entry.
+    final ArrayList<String> mPrioritySizePackages = new ArrayList<String>();
+    // Same for rows whose icon wasn't cached when they were shown.
+    final ArrayList<String> mPriorityIconPackages = new ArrayList<String>();
+    // Sizes of all entries, and of those matching each of TOTALS_FILTERS.
+    // Kept up to date as sizes arrive; synchronize on mSizeTotals, which
+    // is taken while holding an entry.
+    final SizeTotals mSizeTotals = new SizeTotals();
+    final SizeTotals[] mFilterTotals = new SizeTotals[TOTALS_FILTERS.length];
+    // Set on resume; TOTALS_FILTERS are then re-initialized and the
+    // totals recounted on the background thread, since init() may call
+    // into the package manager.
+    boolean mTotalsFiltersStale = true;
     boolean mSessionsChanged;
 
     // Temporary for dispatching session callbacks.  Only touched by main thread.
@@ -365,11 +525,24 @@ public class ApplicationsState {
         static final int MSG_PACKAGE_SIZE_CHANGED = 4;
         static final int MSG_ALL_SIZES_COMPUTED = 5;
         static final int MSG_RUNNING_STATE_CHANGED = 6;
+        static final int MSG_ENTRY_REMOVED = 7;
+        static final int MSG_ENTRY_ADDED = 8;
+        static final int MSG_SIZE_TOTALS_CHANGED = 9;
 
         @Override
         public void handleMessage(Message msg) {
             rebuildActiveSessions();
             switch (msg.what) {
+                case MSG_ENTRY_REMOVED: {
+                    for (int i=0; i<mActiveSessions.size(); i++) {
+                        mActiveSessions.get(i).applyDelta((AppEntry)msg.obj, null);
+                    }
+                } break;
+                case MSG_ENTRY_ADDED: {
+                    for (int i=0; i<mActiveSessions.size(); i++) {
+                        mActiveSessions.get(i).applyDelta(null, (AppEntry)msg.obj);
+                    }
+                } break;
                 case MSG_REBUILD_COMPLETE: {
                     Session s = (Session)msg.obj;
                     if (mActiveSessions.contains(s)) {
@@ -387,6 +560,12 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_PACKAGE_SIZE_CHANGED: {
+                    AppEntry entry = mEntriesMap.get((String)msg.obj);
+                    if (entry != null) {
+                        for (int i=0; i<mActiveSessions.size(); i++) {
+                            mActiveSessions.get(i).applyDelta(entry, entry);
+                        }
+                    }
                     for (int i=0; i<mActiveSessions.size(); i++) {
                         mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(
                                 (String)msg.obj);
@@ -403,6 +582,11 @@ public class ApplicationsState {
                                 msg.arg1 != 0);
                     }
                 } break;
+                case MSG_SIZE_TOTALS_CHANGED: {
+                    for (int i=0; i<mActiveSessions.size(); i++) {
+                        mActiveSessions.get(i).mCallbacks.onSizeTotalsChanged();
+                    }
+                } break;
             }
         }
     }
@@ -426,10 +610,31 @@ public class ApplicationsState {
     private ApplicationsState(Application app) {
         mContext = app;
         mPm = mContext.getPackageManager();
+        mEntryCache = new AppEntryCache(mContext);
         mThread = new HandlerThread("ApplicationsState.Loader",
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
         mBackgroundHandler = new BackgroundHandler(mThread.getLooper());
+        for (int i=0; i<mFilterTotals.length; i++) {
+            mFilterTotals[i] = new SizeTotals();
+        }
+        mContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+                    releaseIcons();
+                }
+            }
+
+            @Override
+            public void onLowMemory() {
+                releaseIcons();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
 
         // Only the owner can see all apps.
         if (UserHandle.myUserId() == 0) {
@@ -475,6 +680,13 @@ public class ApplicationsState {
         Comparator<AppEntry> mRebuildComparator;
         ArrayList<AppEntry> mRebuildResult;
         ArrayList<AppEntry> mLastAppList;
+        // What mLastAppList was built with, to apply package deltas to it.
+        AppFilter mLastFilter;
+        Comparator<AppEntry> mLastComparator;
+        boolean mRebuildRunning;
+        // A delta arrived while a rebuild was under way and may be missing
+        // from its result.
+        boolean mDeltaMissed;
 
         Session(Callbacks callbacks) {
             mCallbacks = callbacks;
@@ -555,6 +767,8 @@ public class ApplicationsState {
                 mRebuildRequested = false;
                 mRebuildFilter = null;
                 mRebuildComparator = null;
+                mRebuildRunning = true;
+                mDeltaMissed = false;
             }
 
             Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
@@ -573,22 +787,36 @@ public class ApplicationsState {
             for (int i=0; i<apps.size(); i++) {
                 ApplicationInfo info = apps.get(i);
                 if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
+                    AppEntry entry = obtainEntry(info);
+                    if (entry == null) {
+                        continue;
+                    }
+                    synchronized (entry) {
                         entry.ensureLabel(mContext);
-                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
-                        filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
                     }
+                    if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                    filteredApps.add(entry);
                 }
             }
 
             Collections.sort(filteredApps, comparator);
 
             synchronized (mRebuildSync) {
+                mRebuildRunning = false;
+                if (!mRebuildRequested && mDeltaMissed) {
+                    // go again rather than publish a list missing a change
+                    synchronized (mEntriesMap) {
+                        mRebuildingSessions.add(this);
+                        mRebuildRequested = true;
+                        mRebuildFilter = filter;
+                        mRebuildComparator = comparator;
+                        mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_REBUILD_LIST);
+                    }
+                }
                 if (!mRebuildRequested) {
                     mLastAppList = filteredApps;
+                    mLastFilter = filter;
+                    mLastComparator = comparator;
                     if (!mRebuildAsync) {
                         mRebuildResult = filteredApps;
                         mRebuildSync.notifyAll();
@@ -605,6 +833,61 @@ public class ApplicationsState {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         }
 
+        /**
+         * Apply a single package change to the last list instead of
+         * rebuilding it.  Called on the main thread; removed and added are
+         * the same entry when its size changed.
+         */
+        void applyDelta(AppEntry removed, AppEntry added) {
+            ArrayList<AppEntry> apps;
+            AppEntry entry;
+            int oldPos = -1;
+            int newPos = -1;
+            synchronized (mRebuildSync) {
+                if (mLastAppList == null) {
+                    return;
+                }
+                if (mRebuildRequested || mRebuildRunning) {
+                    mDeltaMissed = true;
+                    return;
+                }
+                final Comparator<AppEntry> comparator = mLastComparator;
+                if (removed != null) {
+                    oldPos = indexOfEntry(mLastAppList, removed, comparator);
+                }
+                if (removed != null && removed == added) {
+                    // size change: only move it if it's now out of order
+                    if (oldPos < 0 || comparator == null
+                            || isInOrder(mLastAppList, oldPos, comparator)) {
+                        return;
+                    }
+                } else if (added != null) {
+                    if ((mLastFilter != null && !mLastFilter.filterApp(added.info))
+                            || indexOfEntry(mLastAppList, added, comparator) >= 0) {
+                        // filtered out, or already picked up by a rebuild
+                        added = null;
+                    }
+                }
+                if (oldPos < 0 && added == null) {
+                    return;
+                }
+                // The list may still be read by the adapter's filter thread,
+                // which holds its lock while doing so.
+                apps = mLastAppList;
+                synchronized (apps) {
+                    if (oldPos >= 0) {
+                        apps.remove(oldPos);
+                    }
+                    if (added != null) {
+                        newPos = insertionPoint(apps, added, comparator);
+                        apps.add(newPos, added);
+                    }
+                }
+                entry = added != null ? added : removed;
+            }
+            mCallbacks.onEntryChanged(apps, entry, oldPos, newPos);
+        }
+
         public void release() {
             pause();
             synchronized (mEntriesMap) {
@@ -613,6 +896,44 @@ public class ApplicationsState {
         }
     }
 
+    static int indexOfEntry(ArrayList<AppEntry> apps, AppEntry entry,
+            Comparator<AppEntry> comparator) {
+        if (comparator != null) {
+            int index = Collections.binarySearch(apps, entry, comparator);
+            if (index >= 0 && apps.get(index) == entry) {
+                return index;
+            }
+        }
+        // its sort key may have changed since it was placed
+        for (int i=0; i<apps.size(); i++) {
+            if (apps.get(i) == entry) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static int insertionPoint(ArrayList<AppEntry> apps, AppEntry entry,
+            Comparator<AppEntry> comparator) {
+        if (comparator == null) {
+            return apps.size();
+        }
+        int index = Collections.binarySearch(apps, entry, comparator);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    static boolean isInOrder(ArrayList<AppEntry> apps, int index,
+            Comparator<AppEntry> comparator) {
+        AppEntry entry = apps.get(index);
+        if (index > 0 && comparator.compare(apps.get(index - 1), entry) > 0) {
+            return false;
+        }
+        if (index < apps.size() - 1 && comparator.compare(entry, apps.get(index + 1)) > 0) {
+            return false;
+        }
+        return true;
+    }
+
     public Session newSession(Callbacks callbacks) {
         Session s = new Session(callbacks);
         synchronized (mEntriesMap) {
@@ -638,14 +959,26 @@ public class ApplicationsState {
         if (mInterestingConfigChanges.applyNewConfig(mContext.getResources())) {
             // If an interesting part of the configuration has changed, we
             // should completely reload the app entries.
+            for (int i=0; i<mAppEntries.size(); i++) {
+                final AppEntry entry = mAppEntries.get(i);
+                synchronized (entry) {
+                    mEntriesMap.remove(entry.info.packageName);
+                    uncountSizesLocked(entry);
+                }
+            }
+            notifySizeTotalsChanged();
             mEntriesMap.clear();
             mAppEntries.clear();
+            mEntryCache.markDirty();
+            mEntrySnapshot = null;
         } else {
             for (int i=0; i<mAppEntries.size(); i++) {
                 mAppEntries.get(i).sizeStale = true;
             }
         }
 
+        mTotalsFiltersStale = true;
+
         mHaveDisabledApps = false;
         for (int i=0; i<mApplications.size(); i++) {
             final ApplicationInfo info = mApplications.get(i);
@@ -661,10 +994,41 @@ public class ApplicationsState {
             }
             final AppEntry entry = mEntriesMap.get(info.packageName);
             if (entry != null) {
-                entry.info = info;
+                synchronized (entry) {
+                    setInfoLocked(entry, info);
+                }
+            }
+        }
+
+        // drop entries of apps uninstalled or trimmed above while we were
+        // paused, so the running totals only cover what lists can show
+        final HashSet<String> packages = new HashSet<String>(mApplications.size() * 2);
+        for (int i=0; i<mApplications.size(); i++) {
+            packages.add(mApplications.get(i).packageName);
+        }
+        boolean removed = false;
+        for (int i=mAppEntries.size()-1; i>=0; i--) {
+            final AppEntry entry = mAppEntries.get(i);
+            if (packages.contains(entry.info.packageName)) {
+                continue;
+            }
+            synchronized (entry) {
+                mEntriesMap.remove(entry.info.packageName);
+                uncountSizesLocked(entry);
             }
+            mAppEntries.remove(i);
+            removed = true;
+            mMainHandler.sendMessage(mMainHandler.obtainMessage(
+                    MainHandler.MSG_ENTRY_REMOVED, entry));
         }
-        mCurComputingSizePkg = null;
+        if (removed) {
+            notifySizeTotalsChanged();
+            mEntryCache.markDirty();
+            mEntrySnapshot = null;
+        }
+
+        mSizeRequests.clear();
+        mSizeCursor = 0;
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
@@ -684,6 +1048,9 @@ public class ApplicationsState {
             }
         }
         mResumed = false;
+        // keep what we have so the next cold start shows it right away
+        mBackgroundHandler.removeMessages(BackgroundHandler.MSG_SAVE_ENTRIES);
+        mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_SAVE_ENTRIES);
         if (mPackageIntentReceiver != null) {
             mPackageIntentReceiver.unregisterReceiver();
             mPackageIntentReceiver = null;
@@ -691,9 +1058,13 @@ public class ApplicationsState {
     }
 
     AppEntry getEntry(String packageName) {
+        AppEntry entry = mEntriesMap.get(packageName);
+        if (entry != null) {
+            return entry;
+        }
         if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
         synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
+            entry = mEntriesMap.get(packageName);
             if (entry == null) {
                 for (int i=0; i<mApplications.size(); i++) {
                     ApplicationInfo info = mApplications.get(i);
@@ -717,28 +1088,72 @@ public class ApplicationsState {
         }
     }
     
-    void requestSize(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry != null) {
-                mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
+    /**
+     * Compute the size of an entry that is being displayed before the
+     * rest, if it isn't known yet.
+     */
+    void prioritizeSize(AppEntry entry) {
+        synchronized (mPrioritySizePackages) {
+            String pkg = entry.info.packageName;
+            mPrioritySizePackages.remove(pkg);
+            if (mPrioritySizePackages.size() >= MAX_PRIORITY_SIZES) {
+                mPrioritySizePackages.remove(0);
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...requestSize releasing lock");
+            mPrioritySizePackages.add(pkg);
         }
     }
 
-    long sumCacheSizes() {
-        long sum = 0;
-        if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
-        synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "-> sumCacheSizes now has lock");
-            for (int i=mAppEntries.size()-1; i>=0; i--) {
-                sum += mAppEntries.get(i).cacheSize;
+    /**
+     * Use the icon of an entry that is being displayed if it's cached,
+     * otherwise have it loaded in the background ahead of the others.
+     * Call while holding the entry's lock.
+     *
+     * @return Whether entry.icon is available now
+     */
+    boolean peekIcon(AppEntry entry) {
+        if (entry.peekIconLocked(mContext)) {
+            return true;
+        }
+        synchronized (mPriorityIconPackages) {
+            String pkg = entry.info.packageName;
+            mPriorityIconPackages.remove(pkg);
+            if (mPriorityIconPackages.size() >= MAX_PRIORITY_ICONS) {
+                mPriorityIconPackages.remove(0);
+            }
+            mPriorityIconPackages.add(pkg);
+        }
+        if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_PRIORITY_ICONS)) {
+            mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_PRIORITY_ICONS);
+        }
+        return false;
+    }
+
+    /**
+     * Drop the icons held by entries so only the bounded shared cache (and
+     * whatever is on screen) keeps them; they are reloaded as rows are shown.
+     */
+    void releaseIcons() {
+        final AppEntry[] entries = getEntrySnapshot();
+        for (int i=0; i<entries.length; i++) {
+            synchronized (entries[i]) {
+                if (entries[i].mounted) {
+                    entries[i].icon = null;
+                }
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...sumCacheSizes releasing lock");
         }
-        return sum;
+    }
+
+    void requestSize(String packageName) {
+        AppEntry entry = mEntriesMap.get(packageName);
+        if (entry != null) {
+            mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
+        }
+    }
+
+    long sumCacheSizes() {
+        synchronized (mSizeTotals) {
+            return mSizeTotals.cacheSize;
+        }
     }
     
     int indexOfApplicationInfoLocked(String pkgName) {
@@ -776,6 +1191,8 @@ public class ApplicationsState {
                     mHaveDisabledApps = true;
                 }
                 mApplications.add(info);
+                mBackgroundHandler.sendMessage(mBackgroundHandler.obtainMessage(
+                        BackgroundHandler.MSG_ADD_ENTRY, pkgName));
                 if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                     mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
                 }
@@ -797,9 +1214,18 @@ public class ApplicationsState {
                 AppEntry entry = mEntriesMap.get(pkgName);
                 if (DEBUG) Log.i(TAG, "removePackage: " + entry);
                 if (entry != null) {
-                    mEntriesMap.remove(pkgName);
+                    synchronized (entry) {
+                        mEntriesMap.remove(pkgName);
+                        uncountSizesLocked(entry);
+                    }
+                    notifySizeTotalsChanged();
                     mAppEntries.remove(entry);
+                    mEntryCache.markDirty();
+                    mEntrySnapshot = null;
+                    mMainHandler.sendMessage(mMainHandler.obtainMessage(
+                            MainHandler.MSG_ENTRY_REMOVED, entry));
                 }
+                AppIconCache.getInstance(mContext).invalidate(pkgName);
                 ApplicationInfo info = mApplications.get(idx);
                 mApplications.remove(idx);
                 if (!info.enabled) {
@@ -828,16 +1254,230 @@ public class ApplicationsState {
         AppEntry entry = mEntriesMap.get(info.packageName);
         if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
         if (entry == null) {
-            if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
-            mEntriesMap.put(info.packageName, entry);
-            mAppEntries.add(entry);
+            entry = createEntry(info, mCurId++);
+            putEntryLocked(entry);
         } else if (entry.info != info) {
-            entry.info = info;
+            synchronized (entry) {
+                setInfoLocked(entry, info);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Like getEntryLocked(), but loads a new entry's label without holding
+     * mEntriesMap.
+     *
+     * @return The entry, or null if the package went away meanwhile
+     */
+    AppEntry obtainEntry(ApplicationInfo info) {
+        AppEntry entry = mEntriesMap.get(info.packageName);
+        if (entry == null) {
+            long id;
+            synchronized (mEntriesMap) {
+                id = mCurId++;
+            }
+            AppEntry created = createEntry(info, id);
+            synchronized (mEntriesMap) {
+                entry = mEntriesMap.get(info.packageName);
+                if (entry == null) {
+                    // removePackage() has nothing to drop until the entry
+                    // is in, so check the package is still there
+                    final int idx = indexOfApplicationInfoLocked(info.packageName);
+                    if (idx < 0) {
+                        return null;
+                    }
+                    putEntryLocked(created);
+                    final ApplicationInfo current = mApplications.get(idx);
+                    if (current != info) {
+                        synchronized (created) {
+                            setInfoLocked(created, current);
+                        }
+                    }
+                    return created;
+                }
+            }
+        }
+        synchronized (entry) {
+            setInfoLocked(entry, info);
         }
         return entry;
     }
 
+    private AppEntry createEntry(ApplicationInfo info, long id) {
+        AppEntryCache.Record cached = mEntryCache.get(mContext, info);
+        if (cached != null) {
+            if (DEBUG) Log.i(TAG, "Restoring cached AppEntry for " + info.packageName);
+            AppEntry entry = new AppEntry(info, id, cached);
+            entry.sizeStr = getSizeStr(entry.size);
+            entry.internalSizeStr = getSizeStr(entry.internalSize);
+            entry.externalSizeStr = getSizeStr(entry.externalSize);
+            return entry;
+        }
+        if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
+        mEntryCache.markDirty();
+        return new AppEntry(mContext, info, id);
+    }
+
+    private void putEntryLocked(AppEntry entry) {
+        synchronized (entry) {
+            mEntriesMap.put(entry.info.packageName, entry);
+            countSizesLocked(entry);
+        }
+        mAppEntries.add(entry);
+        mEntrySnapshot = null;
+        if (entry.size >= 0) {
+            // restored from the entry cache
+            notifySizeTotalsChanged();
+        }
+    }
+
+    // The following keep mSizeTotals in step with the entries; call them
+    // holding the entry's lock, around any change to its sizes or info.
+
+    private void countSizesLocked(AppEntry entry) {
+        int filters = 0;
+        for (int i=0; i<TOTALS_FILTERS.length; i++) {
+            if (TOTALS_FILTERS[i].filterApp(entry.info)) {
+                filters |= 1 << i;
+            }
+        }
+        synchronized (mSizeTotals) {
+            mSizeTotals.add(entry, 1);
+            for (int i=0; i<mFilterTotals.length; i++) {
+                if ((filters & (1 << i)) != 0) {
+                    mFilterTotals[i].add(entry, 1);
+                }
+            }
+        }
+        entry.sizeCounted = true;
+        entry.sizeFilters = filters;
+    }
+
+    private void uncountSizesLocked(AppEntry entry) {
+        if (!entry.sizeCounted) {
+            return;
+        }
+        synchronized (mSizeTotals) {
+            mSizeTotals.add(entry, -1);
+            for (int i=0; i<mFilterTotals.length; i++) {
+                if ((entry.sizeFilters & (1 << i)) != 0) {
+                    mFilterTotals[i].add(entry, -1);
+                }
+            }
+        }
+        entry.sizeCounted = false;
+    }
+
+    private void setInfoLocked(AppEntry entry, ApplicationInfo info) {
+        if (entry.info == info) {
+            return;
+        }
+        if (!entry.sizeCounted) {
+            entry.info = info;
+            return;
+        }
+        // enabling, disabling or moving an app can change its filters
+        final int oldFilters = entry.sizeFilters;
+        uncountSizesLocked(entry);
+        entry.info = info;
+        countSizesLocked(entry);
+        if (entry.sizeFilters != oldFilters) {
+            notifySizeTotalsChanged();
+        }
+    }
+
+    /**
+     * Re-initialize TOTALS_FILTERS if a resume asked for it, and recount
+     * any entries whose filters changed.  Background thread only.
+     */
+    void initTotalsFiltersIfNeeded() {
+        synchronized (mEntriesMap) {
+            if (!mTotalsFiltersStale) {
+                return;
+            }
+            mTotalsFiltersStale = false;
+        }
+        for (int i=0; i<TOTALS_FILTERS.length; i++) {
+            TOTALS_FILTERS[i].init();
+        }
+        boolean changed = false;
+        synchronized (mEntriesMap) {
+            for (int i=0; i<mAppEntries.size(); i++) {
+                final AppEntry entry = mAppEntries.get(i);
+                synchronized (entry) {
+                    if (!entry.sizeCounted) {
+                        continue;
+                    }
+                    final int oldFilters = entry.sizeFilters;
+                    uncountSizesLocked(entry);
+                    countSizesLocked(entry);
+                    changed |= entry.sizeFilters != oldFilters;
+                }
+            }
+        }
+        if (changed) {
+            notifySizeTotalsChanged();
+        }
+    }
+
+    void notifySizeTotalsChanged() {
+        if (!mMainHandler.hasMessages(MainHandler.MSG_SIZE_TOTALS_CHANGED)) {
+            mMainHandler.sendEmptyMessage(MainHandler.MSG_SIZE_TOTALS_CHANGED);
+        }
+    }
+
+    /**
+     * Sizes summed over all entries, or over those in a list built with
+     * the given filter.  Totals for the stock filters are kept as sizes
+     * arrive, so this is cheap for them; any other filter is summed on
+     * the spot.  That filter is not initialized here, since init() may
+     * call into the package manager; building a session's list with it
+     * does so on the background thread.
+     *
+     * @param filter One of the stock filters, another filter, or null for
+     *            all entries
+     * @return A copy of the totals
+     */
+    SizeTotals getSizeTotals(AppFilter filter) {
+        if (filter == null) {
+            synchronized (mSizeTotals) {
+                return new SizeTotals(mSizeTotals);
+            }
+        }
+        for (int i=0; i<TOTALS_FILTERS.length; i++) {
+            if (TOTALS_FILTERS[i] == filter) {
+                synchronized (mSizeTotals) {
+                    return new SizeTotals(mFilterTotals[i]);
+                }
+            }
+        }
+        SizeTotals totals = new SizeTotals();
+        final AppEntry[] entries = getEntrySnapshot();
+        for (int i=0; i<entries.length; i++) {
+            synchronized (entries[i]) {
+                if (filter.filterApp(entries[i].info)) {
+                    totals.add(entries[i], 1);
+                }
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * @return All current entries; the array is shared, don't modify it
+     */
+    AppEntry[] getEntrySnapshot() {
+        AppEntry[] snapshot = mEntrySnapshot;
+        if (snapshot == null) {
+            synchronized (mEntriesMap) {
+                snapshot = mAppEntries.toArray(new AppEntry[mAppEntries.size()]);
+                mEntrySnapshot = snapshot;
+            }
+        }
+        return snapshot;
+    }
+
     // --------------------------------------------------------------
 
     private long getTotalInternalSize(PackageStats ps) {
@@ -865,6 +1505,13 @@ public class ApplicationsState {
         return null;
     }
 
+    // Size requests kept in flight at once by the background loader.
+    static final int MAX_SIZE_REQUESTS = 4;
+    // Give up on a size request (and retry it later) after this long.
+    static final long SIZE_TIMEOUT_MS = 20 * 1000;
+    static final int MAX_PRIORITY_SIZES = 16;
+    static final int MAX_PRIORITY_ICONS = 32;
+
     final HandlerThread mThread;
     final BackgroundHandler mBackgroundHandler;
     class BackgroundHandler extends Handler {
@@ -872,58 +1519,81 @@ public class ApplicationsState {
         static final int MSG_LOAD_ENTRIES = 2;
         static final int MSG_LOAD_ICONS = 3;
         static final int MSG_LOAD_SIZES = 4;
+        static final int MSG_SAVE_ENTRIES = 5;
+        static final int MSG_CHECK_SIZES = 6;
+        static final int MSG_LOAD_PRIORITY_ICONS = 7;
+        static final int MSG_ADD_ENTRY = 8;
+
+        // wait for the burst of size updates to settle before writing
+        static final long SAVE_DELAY_MS = 2000;
 
         boolean mRunning;
 
         final IPackageStatsObserver.Stub mStatsObserver = new IPackageStatsObserver.Stub() {
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 boolean sizeChanged = false;
-                synchronized (mEntriesMap) {
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
-                    AppEntry entry = mEntriesMap.get(stats.packageName);
-                    if (entry != null) {
-                        synchronized (entry) {
-                            entry.sizeStale = false;
-                            entry.sizeLoadStart = 0;
-                            long externalCodeSize = stats.externalCodeSize
-                                    + stats.externalObbSize;
-                            long externalDataSize = stats.externalDataSize
-                                    + stats.externalMediaSize;
-                            long newSize = externalCodeSize + externalDataSize
-                                    + getTotalInternalSize(stats);
-                            if (entry.size != newSize ||
-                                    entry.cacheSize != stats.cacheSize ||
-                                    entry.codeSize != stats.codeSize ||
-                                    entry.dataSize != stats.dataSize ||
-                                    entry.externalCodeSize != externalCodeSize ||
-                                    entry.externalDataSize != externalDataSize ||
-                                    entry.externalCacheSize != stats.externalCacheSize) {
-                                entry.size = newSize;
-                                entry.cacheSize = stats.cacheSize;
-                                entry.codeSize = stats.codeSize;
-                                entry.dataSize = stats.dataSize;
-                                entry.externalCodeSize = externalCodeSize;
-                                entry.externalDataSize = externalDataSize;
-                                entry.externalCacheSize = stats.externalCacheSize;
-                                entry.sizeStr = getSizeStr(entry.size);
-                                entry.internalSize = getTotalInternalSize(stats);
-                                entry.internalSizeStr = getSizeStr(entry.internalSize);
-                                entry.externalSize = getTotalExternalSize(stats);
-                                entry.externalSizeStr = getSizeStr(entry.externalSize);
-                                if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
-                                        + ": " + entry.sizeStr);
-                                sizeChanged = true;
+                AppEntry entry = mEntriesMap.get(stats.packageName);
+                if (entry != null) {
+                    synchronized (entry) {
+                        entry.sizeStale = false;
+                        entry.sizeLoadStart = 0;
+                        long externalCodeSize = stats.externalCodeSize
+                                + stats.externalObbSize;
+                        long externalDataSize = stats.externalDataSize
+                                + stats.externalMediaSize;
+                        long newSize = externalCodeSize + externalDataSize
+                                + getTotalInternalSize(stats);
+                        if (entry.size != newSize ||
+                                entry.cacheSize != stats.cacheSize ||
+                                entry.codeSize != stats.codeSize ||
+                                entry.dataSize != stats.dataSize ||
+                                entry.externalCodeSize != externalCodeSize ||
+                                entry.externalDataSize != externalDataSize ||
+                                entry.externalCacheSize != stats.externalCacheSize) {
+                            uncountSizesLocked(entry);
+                            entry.size = newSize;
+                            entry.cacheSize = stats.cacheSize;
+                            entry.codeSize = stats.codeSize;
+                            entry.dataSize = stats.dataSize;
+                            entry.externalCodeSize = externalCodeSize;
+                            entry.externalDataSize = externalDataSize;
+                            entry.externalCacheSize = stats.externalCacheSize;
+                            entry.sizeStr = getSizeStr(entry.size);
+                            entry.internalSize = getTotalInternalSize(stats);
+                            entry.internalSizeStr = getSizeStr(entry.internalSize);
+                            entry.externalSize = getTotalExternalSize(stats);
+                            entry.externalSizeStr = getSizeStr(entry.externalSize);
+                            if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
+                                    + ": " + entry.sizeStr);
+                            if (mEntriesMap.get(stats.packageName) == entry) {
+                                countSizesLocked(entry);
                             }
+                            sizeChanged = true;
                         }
-                        if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                    }
+                    if (sizeChanged) {
+                        mEntryCache.markDirty();
+                        Message msg = mMainHandler.obtainMessage(
+                                MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
+                        mMainHandler.sendMessage(msg);
+                        notifySizeTotalsChanged();
+                    }
+                }
+                synchronized (mEntriesMap) {
+                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
+                    Long start = mSizeRequests.remove(stats.packageName);
+                    if (start != null) {
+                        long latency = SystemClock.uptimeMillis() - start;
+                        mSizeRequestCount++;
+                        mSizeLatencyTotal += latency;
+                        if (latency > mSizeLatencyMax) {
+                            mSizeLatencyMax = latency;
                         }
+                        if (DEBUG) Log.i(TAG, "Size of " + stats.packageName + " took "
+                                + latency + "ms");
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
+                    if (start != null || mSizeRequests.isEmpty()) {
+                        // a slot is free, send the next request
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
@@ -935,6 +1605,101 @@ public class ApplicationsState {
             super(looper);
         }
 
+        /**
+         * Load the icons of rows that were shown without one.
+         *
+         * @return The number of icons loaded
+         */
+        private int loadPriorityIcons() {
+            int numDone = 0;
+            while (true) {
+                String pkg;
+                synchronized (mPriorityIconPackages) {
+                    if (mPriorityIconPackages.isEmpty()) {
+                        break;
+                    }
+                    // most recently shown first
+                    pkg = mPriorityIconPackages.remove(mPriorityIconPackages.size() - 1);
+                }
+                AppEntry entry = mEntriesMap.get(pkg);
+                if (entry != null) {
+                    synchronized (entry) {
+                        // unmounted apps get a placeholder without "loading"
+                        if (entry.ensureIconLocked(mContext, mPm) || entry.icon != null) {
+                            numDone++;
+                        }
+                    }
+                }
+            }
+            return numDone;
+        }
+
+        // Packages picked by MSG_LOAD_SIZES, asked for once mEntriesMap is released.
+        final ArrayList<String> mSizeCalls = new ArrayList<String>();
+
+        private boolean needsSizeLocked(AppEntry entry) {
+            synchronized (entry) {
+                return (entry.size == SIZE_UNKNOWN || entry.sizeStale)
+                        && !mSizeRequests.containsKey(entry.info.packageName);
+            }
+        }
+
+        private void startSizeRequestLocked(AppEntry entry, long now) {
+            if (!mRunning) {
+                mRunning = true;
+                Message m = mMainHandler.obtainMessage(
+                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                mMainHandler.sendMessage(m);
+            }
+            if (mSizeRequests.isEmpty() && mSizeRequestCount == 0) {
+                mSizePassStart = now;
+            }
+            synchronized (entry) {
+                entry.sizeLoadStart = now;
+            }
+            mSizeRequests.put(entry.info.packageName, now);
+            mSizeCalls.add(entry.info.packageName);
+        }
+
+        private void expireSizeRequestsLocked(long now) {
+            Iterator<Map.Entry<String, Long>> it = mSizeRequests.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> request = it.next();
+                if (request.getValue() < now - SIZE_TIMEOUT_MS) {
+                    Log.w(TAG, "Timed out computing size of " + request.getKey());
+                    mSizeTimeouts++;
+                    it.remove();
+                }
+            }
+        }
+
+        private void requestPrioritySizesLocked(long now) {
+            synchronized (mPrioritySizePackages) {
+                for (int i = mPrioritySizePackages.size() - 1;
+                        i >= 0 && mSizeRequests.size() < MAX_SIZE_REQUESTS; i--) {
+                    AppEntry entry = mEntriesMap.get(mPrioritySizePackages.remove(i));
+                    if (entry != null && needsSizeLocked(entry)) {
+                        startSizeRequestLocked(entry, now);
+                    }
+                }
+            }
+        }
+
+        private void requestNextSizesLocked(long now) {
+            final int N = mAppEntries.size();
+            for (int scanned = 0; scanned < N && mSizeRequests.size() < MAX_SIZE_REQUESTS;
+                    scanned++) {
+                if (mSizeCursor >= N) {
+                    mSizeCursor = 0;
+                }
+                AppEntry entry = mAppEntries.get(mSizeCursor);
+                if (needsSizeLocked(entry)) {
+                    startSizeRequestLocked(entry, now);
+                }
+                mSizeCursor++;
+            }
+        }
+
         @Override
         public void handleMessage(Message msg) {
             // Always try rebuilding list first thing, if needed.
@@ -954,11 +1719,30 @@ public class ApplicationsState {
             switch (msg.what) {
                 case MSG_REBUILD_LIST: {
                 } break;
+                case MSG_ADD_ENTRY: {
+                    ApplicationInfo info = null;
+                    synchronized (mEntriesMap) {
+                        int idx = indexOfApplicationInfoLocked((String)msg.obj);
+                        if (idx >= 0) {
+                            info = mApplications.get(idx);
+                        }
+                    }
+                    AppEntry entry = info != null ? obtainEntry(info) : null;
+                    if (entry != null) {
+                        synchronized (entry) {
+                            entry.ensureLabel(mContext);
+                        }
+                        mMainHandler.sendMessage(mMainHandler.obtainMessage(
+                                MainHandler.MSG_ENTRY_ADDED, entry));
+                    }
+                } break;
                 case MSG_LOAD_ENTRIES: {
-                    int numDone = 0;
+                    mEntryCache.ensureLoaded();
+                    initTotalsFiltersIfNeeded();
+                    ArrayList<ApplicationInfo> toLoad = new ArrayList<ApplicationInfo>(6);
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
-                        for (int i=0; i<mApplications.size() && numDone<6; i++) {
+                        for (int i=0; i<mApplications.size() && toLoad.size()<6; i++) {
                             if (!mRunning) {
                                 mRunning = true;
                                 Message m = mMainHandler.obtainMessage(
@@ -967,12 +1751,16 @@ public class ApplicationsState {
                             }
                             ApplicationInfo info = mApplications.get(i);
                             if (mEntriesMap.get(info.packageName) == null) {
-                                numDone++;
-                                getEntryLocked(info);
+                                toLoad.add(info);
                             }
                         }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
+                    // labels are loaded without holding everyone else up
+                    final int numDone = toLoad.size();
+                    for (int i=0; i<numDone; i++) {
+                        obtainEntry(toLoad.get(i));
+                    }
 
                     if (numDone >= 6) {
                         sendEmptyMessage(MSG_LOAD_ENTRIES);
@@ -980,27 +1768,34 @@ public class ApplicationsState {
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     }
                 } break;
+                case MSG_LOAD_PRIORITY_ICONS: {
+                    if (loadPriorityIcons() > 0) {
+                        if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
+                            mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
+                        }
+                    }
+                } break;
                 case MSG_LOAD_ICONS: {
-                    int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
+                    int numDone = loadPriorityIcons();
+                    // Preload while the shared cache has room; the rest
+                    // are loaded as their rows are shown.
+                    final boolean preload = !AppIconCache.getInstance(mContext).isFull();
+                    final AppEntry[] entries = getEntrySnapshot();
+                    for (int i=0; i<entries.length && numDone<2; i++) {
+                        AppEntry entry = entries[i];
+                        if ((entry.icon == null && preload) || !entry.mounted) {
+                            synchronized (entry) {
+                                if (entry.ensureIconLocked(mContext, mPm)) {
+                                    if (!mRunning) {
+                                        mRunning = true;
+                                        Message m = mMainHandler.obtainMessage(
+                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                        mMainHandler.sendMessage(m);
                                     }
+                                    numDone++;
                                 }
                             }
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
                     }
                     if (numDone > 0) {
                         if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
@@ -1013,43 +1808,61 @@ public class ApplicationsState {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                 } break;
-                case MSG_LOAD_SIZES: {
+                case MSG_LOAD_SIZES:
+                case MSG_CHECK_SIZES: {
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
-                        }
-
                         long now = SystemClock.uptimeMillis();
-                        for (int i=0; i<mAppEntries.size(); i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
-                                }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
-                            }
+                        expireSizeRequestsLocked(now);
+                        if (mSizeRequests.size() < MAX_SIZE_REQUESTS) {
+                            requestPrioritySizesLocked(now);
+                            requestNextSizesLocked(now);
                         }
-                        if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
-                            mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
-                            mRunning = false;
-                            Message m = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
-                            mMainHandler.sendMessage(m);
+                        if (!mSizeRequests.isEmpty()) {
+                            // make sure a lost callback doesn't stall the pass
+                            removeMessages(MSG_CHECK_SIZES);
+                            sendEmptyMessageDelayed(MSG_CHECK_SIZES, SIZE_TIMEOUT_MS);
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
+                        } else {
+                            removeMessages(MSG_CHECK_SIZES);
+                            if (mSizeRequestCount > 0) {
+                                Log.i(TAG, "Computed " + mSizeRequestCount + " sizes in "
+                                        + (now - mSizePassStart) + "ms, avg "
+                                        + (mSizeLatencyTotal / mSizeRequestCount) + "ms, max "
+                                        + mSizeLatencyMax + "ms, timeouts " + mSizeTimeouts);
+                                mSizeRequestCount = 0;
+                                mSizeLatencyTotal = 0;
+                                mSizeLatencyMax = 0;
+                                mSizeTimeouts = 0;
+                            }
+                            if (!hasMessages(MSG_SAVE_ENTRIES)) {
+                                sendEmptyMessageDelayed(MSG_SAVE_ENTRIES, SAVE_DELAY_MS);
+                            }
+                            if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
+                                mMainHandler.sendEmptyMessage(
+                                        MainHandler.MSG_ALL_SIZES_COMPUTED);
+                                mRunning = false;
+                                Message m = mMainHandler.obtainMessage(
+                                        MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
+                                mMainHandler.sendMessage(m);
+                            }
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
                     }
+                    // the binder calls go out without holding mEntriesMap
+                    for (int i=0; i<mSizeCalls.size(); i++) {
+                        mPm.getPackageSizeInfo(mSizeCalls.get(i), mStatsObserver);
+                    }
+                    mSizeCalls.clear();
+                } break;
+                case MSG_SAVE_ENTRIES: {
+                    final AppEntry[] entries = getEntrySnapshot();
+                    if (entries.length == 0) {
+                        break;
+                    }
+                    ArrayList<AppEntry> list = new ArrayList<AppEntry>(entries.length);
+                    Collections.addAll(list, entries);
+                    mEntryCache.save(mContext, list);
                 } break;
             }
         }
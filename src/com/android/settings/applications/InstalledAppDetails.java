@@ -609,6 +609,15 @@ public class InstalledAppDetails extends Fragment
     public void onRebuildComplete(ArrayList<AppEntry> apps) {
     }
 
+    @Override
+    public void onEntryChanged(ArrayList<AppEntry> apps, AppEntry entry,
+            int oldPosition, int newPosition) {
+    }
+
+    @Override
+    public void onSizeTotalsChanged() {
+    }
+
     @Override
     public void onPackageSizeChanged(String packageName) {
         if (packageName.equals(mAppEntry.info.packageName)) {
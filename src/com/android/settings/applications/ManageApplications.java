@@ -35,6 +35,7 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageManager;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.graphics.drawable.Drawable;
 import android.net.NetworkPolicyManager;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -343,14 +344,10 @@ public class ManageApplications extends Fragment implements
                     }
                 }
 
-                if (mApplications != null) {
-                    final int N = mApplications.getCount();
-                    for (int i=0; i<N; i++) {
-                        ApplicationsState.AppEntry ae = mApplications.getAppEntry(i);
-                        mAppStorage += ae.externalCodeSize + ae.externalDataSize
-                                + ae.externalCacheSize;
-                    }
-                }
+                ApplicationsState.SizeTotals totals = mApplicationsState.getSizeTotals(
+                        mApplications.getAppFilter());
+                mAppStorage = totals.externalCodeSize + totals.externalDataSize
+                        + totals.externalCacheSize;
             } else {
                 if (mContainerService != null) {
                     try {
@@ -364,15 +361,11 @@ public class ManageApplications extends Fragment implements
                 }
 
                 final boolean emulatedStorage = Environment.isExternalStorageEmulated();
-                if (mApplications != null) {
-                    final int N = mApplications.getCount();
-                    for (int i=0; i<N; i++) {
-                        ApplicationsState.AppEntry ae = mApplications.getAppEntry(i);
-                        mAppStorage += ae.codeSize + ae.dataSize;
-                        if (emulatedStorage) {
-                            mAppStorage += ae.externalCodeSize + ae.externalDataSize;
-                        }
-                    }
+                ApplicationsState.SizeTotals totals = mApplicationsState.getSizeTotals(
+                        mApplications.getAppFilter());
+                mAppStorage = totals.codeSize + totals.dataSize;
+                if (emulatedStorage) {
+                    mAppStorage += totals.externalCodeSize + totals.externalDataSize;
                 }
                 mFreeStorage += mApplicationsState.sumCacheSizes();
             }
@@ -542,15 +535,24 @@ public class ManageApplications extends Fragment implements
         private ArrayList<ApplicationsState.AppEntry> mEntries;
         private boolean mResumed;
         private int mLastSortMode=-1;
+        private ApplicationsState.AppFilter mAppFilter;
+        private Comparator<AppEntry> mComparator;
         private boolean mWaitingForData;
         private int mWhichSize = SIZE_TOTAL;
+        private Drawable mDefaultIcon;
+        // Built over mBaseEntries the first time a prefix is typed.
+        private final AppSearchIndex mSearchIndex = new AppSearchIndex();
         CharSequence mCurFilterPrefix;
 
         private Filter mFilter = new Filter() {
             @Override
             protected FilterResults performFiltering(CharSequence constraint) {
-                ArrayList<ApplicationsState.AppEntry> entries
-                        = applyPrefixFilter(constraint, mBaseEntries);
+                // the session edits the base list in place on the main thread
+                final ArrayList<ApplicationsState.AppEntry> base = mBaseEntries;
+                ArrayList<ApplicationsState.AppEntry> entries;
+                synchronized (base) {
+                    entries = applyPrefixFilter(constraint, base);
+                }
                 FilterResults fr = new FilterResults();
                 fr.values = entries;
                 fr.count = entries.size();
@@ -646,6 +648,8 @@ public class ManageApplications extends Fragment implements
                     comparatorObj = ApplicationsState.ALPHA_COMPARATOR;
                     break;
             }
+            mAppFilter = filterObj;
+            mComparator = comparatorObj;
             ArrayList<ApplicationsState.AppEntry> entries
                     = mSession.rebuild(filterObj, comparatorObj);
             if (entries == null && !eraseold) {
@@ -671,23 +675,19 @@ public class ManageApplications extends Fragment implements
             }
         }
 
+        ApplicationsState.AppFilter getAppFilter() {
+            return mAppFilter;
+        }
+
         ArrayList<ApplicationsState.AppEntry> applyPrefixFilter(CharSequence prefix,
                 ArrayList<ApplicationsState.AppEntry> origEntries) {
             if (prefix == null || prefix.length() == 0) {
                 return origEntries;
             } else {
-                String prefixStr = ApplicationsState.normalize(prefix.toString());
-                final String spacePrefixStr = " " + prefixStr;
-                ArrayList<ApplicationsState.AppEntry> newEntries
-                        = new ArrayList<ApplicationsState.AppEntry>();
-                for (int i=0; i<origEntries.size(); i++) {
-                    ApplicationsState.AppEntry entry = origEntries.get(i);
-                    String nlabel = entry.getNormalizedLabel();
-                    if (nlabel.startsWith(prefixStr) || nlabel.indexOf(spacePrefixStr) != -1) {
-                        newEntries.add(entry);
-                    }
+                if (!mSearchIndex.isIndexing(origEntries)) {
+                    mSearchIndex.setEntries(origEntries);
                 }
-                return newEntries;
+                return mSearchIndex.query(ApplicationsState.normalize(prefix.toString()));
             }
         }
 
@@ -715,13 +715,78 @@ public class ManageApplications extends Fragment implements
 
         @Override
         public void onPackageListChanged() {
-            rebuild(false);
+            // Added and removed packages arrive through onEntryChanged().
+        }
+
+        @Override
+        public void onEntryChanged(ArrayList<AppEntry> apps, AppEntry entry,
+                int oldPosition, int newPosition) {
+            if (mBaseEntries == null) {
+                // still waiting for the first list
+                return;
+            }
+            if (mBaseEntries != apps) {
+                // not the list we're showing, take it whole
+                mBaseEntries = apps;
+                mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
+                notifyDataSetChanged();
+                mTab.updateStorageUsage();
+                return;
+            }
+            if (mSearchIndex.isIndexing(mBaseEntries)) {
+                mSearchIndex.onEntryChanged(apps, entry, oldPosition, newPosition);
+            }
+            // Unfiltered, mEntries is the list the session just changed;
+            // otherwise only the filtered rows need the change.
+            if (mEntries != mBaseEntries && !applyToFilteredEntries(entry, newPosition)) {
+                mTab.updateStorageUsage();
+                return;
+            }
+            notifyDataSetChanged();
+            mTab.updateStorageUsage();
+        }
+
+        /**
+         * Move, add or remove an entry in the prefix-filtered list.
+         *
+         * @return Whether the filtered list changed
+         */
+        private boolean applyToFilteredEntries(AppEntry entry, int newPosition) {
+            boolean changed = false;
+            for (int i=0; i<mEntries.size(); i++) {
+                if (mEntries.get(i) == entry) {
+                    mEntries.remove(i);
+                    changed = true;
+                    break;
+                }
+            }
+            if (newPosition >= 0 && AppSearchIndex.matches(entry,
+                    ApplicationsState.normalize(mCurFilterPrefix.toString()))) {
+                mEntries.add(ApplicationsState.insertionPoint(mEntries, entry, mComparator),
+                        entry);
+                changed = true;
+            }
+            return changed;
         }
 
         @Override
         public void onPackageIconChanged() {
-            // We ensure icons are loaded when their item is displayed, so
-            // don't care about icons loaded in the background.
+            // Rows are bound with a placeholder until their icon is loaded.
+            for (int i=0; i<mActive.size(); i++) {
+                AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
+                synchronized (holder.entry) {
+                    if (holder.entry.icon != null) {
+                        holder.appIcon.setImageDrawable(holder.entry.icon);
+                    }
+                }
+            }
+        }
+
+        private Drawable getDefaultIcon() {
+            if (mDefaultIcon == null) {
+                mDefaultIcon = mContext.getPackageManager().getDefaultActivityIcon();
+            }
+            return mDefaultIcon;
         }
 
         @Override
@@ -729,18 +794,11 @@ public class ManageApplications extends Fragment implements
             for (int i=0; i<mActive.size(); i++) {
                 AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
                 if (holder.entry.info.packageName.equals(packageName)) {
+                    // If we are sorting by size the session has already
+                    // moved the entry and told us through onEntryChanged().
                     synchronized (holder.entry) {
                         holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
                     }
-                    if (holder.entry.info.packageName.equals(mTab.mOwner.mCurrentPkgName)
-                            && mLastSortMode == SORT_ORDER_SIZE) {
-                        // We got the size information for the last app the
-                        // user viewed, and are sorting by size...  they may
-                        // have cleared data, so we immediately want to resort
-                        // the list with the new size to reflect it to the user.
-                        rebuild(false);
-                    }
-                    mTab.updateStorageUsage();
                     return;
                 }
             }
@@ -749,10 +807,18 @@ public class ManageApplications extends Fragment implements
         @Override
         public void onAllSizesComputed() {
             if (mLastSortMode == SORT_ORDER_SIZE) {
+                // Sizes changed on the background thread before their deltas
+                // got here, so moves were made against a list that wasn't
+                // quite sorted; put it back in order now they have settled.
                 rebuild(false);
             }
             mTab.updateStorageUsage();
         }
+
+        @Override
+        public void onSizeTotalsChanged() {
+            mTab.updateStorageUsage();
+        }
         
         public int getCount() {
             return mEntries != null ? mEntries.size() : 0;
@@ -778,14 +844,17 @@ public class ManageApplications extends Fragment implements
 
             // Bind the data efficiently with the holder
             ApplicationsState.AppEntry entry = mEntries.get(position);
+            boolean sizeNeeded;
             synchronized (entry) {
                 holder.entry = entry;
                 if (entry.label != null) {
                     holder.appName.setText(entry.label);
                 }
-                mState.ensureIcon(entry);
-                if (entry.icon != null) {
+                if (mState.peekIcon(entry)) {
                     holder.appIcon.setImageDrawable(entry.icon);
+                } else {
+                    // loaded in the background, see onPackageIconChanged()
+                    holder.appIcon.setImageDrawable(getDefaultIcon());
                 }
                 holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
                 if ((entry.info.flags&ApplicationInfo.FLAG_INSTALLED) == 0) {
@@ -804,6 +873,11 @@ public class ManageApplications extends Fragment implements
                 } else {
                     holder.checkBox.setVisibility(View.GONE);
                 }
+                sizeNeeded = entry.sizeStale;
+            }
+            if (sizeNeeded) {
+                // visible rows get their sizes before the rest of the list
+                mState.prioritizeSize(entry);
             }
             mActive.remove(convertView);
             mActive.add(convertView);
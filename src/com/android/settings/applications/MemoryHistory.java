@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Recent memory use of the system and of each running process, sampled by
+ * {@link RunningState} while it is polling.
+ *
+ * Samples go into fixed-size rings of primitive arrays, in kilobytes; a
+ * process only costs one array for as long as it keeps showing up. A
+ * process is identified by uid and name rather than pid, so its history
+ * carries across restarts.
+ */
+final class MemoryHistory {
+    // An hour of history at the sampling interval.
+    static final int CAPACITY = 360;
+    static final long SAMPLE_INTERVAL = 10 * 1000;
+
+    static final int MAX_PROCESSES = 64;
+
+    private static final class Series {
+        // PSS in kB per sample slot, 0 when the process wasn't running.
+        final int[] mPssKb = new int[CAPACITY];
+        long mLastSample;
+    }
+
+    private final long[] mTimes = new long[CAPACITY];
+    private final int[] mFreeKb = new int[CAPACITY];
+    private final int[] mCachedKb = new int[CAPACITY];
+    private final HashMap<String, Series> mProcesses = new HashMap<String, Series>();
+
+    // Number of samples taken so far; the current one is in slot
+    // (mSampleCount - 1) % CAPACITY.
+    private long mSampleCount;
+
+    private static String keyFor(int uid, String processName) {
+        return uid + ":" + processName;
+    }
+
+    synchronized boolean isSampleDue(long now) {
+        return mSampleCount == 0
+                || now - mTimes[(int) ((mSampleCount - 1) % CAPACITY)] >= SAMPLE_INTERVAL;
+    }
+
+    /**
+     * Start a new sample with the system memory state; follow with
+     * {@link #addProcess} for each running process.
+     */
+    synchronized void startSample(long now, long freeBytes, long cachedBytes) {
+        final int slot = (int) (mSampleCount % CAPACITY);
+        mSampleCount++;
+        mTimes[slot] = now;
+        mFreeKb[slot] = (int) (freeBytes / 1024);
+        mCachedKb[slot] = (int) (cachedBytes / 1024);
+        Iterator<Series> it = mProcesses.values().iterator();
+        while (it.hasNext()) {
+            Series series = it.next();
+            if (mSampleCount - series.mLastSample > CAPACITY) {
+                // fell out of the window entirely
+                it.remove();
+            } else {
+                series.mPssKb[slot] = 0;
+            }
+        }
+    }
+
+    synchronized void addProcess(int uid, String processName, long pssKb) {
+        if (mSampleCount == 0 || pssKb <= 0) {
+            return;
+        }
+        final String key = keyFor(uid, processName);
+        Series series = mProcesses.get(key);
+        if (series == null) {
+            if (mProcesses.size() >= MAX_PROCESSES && !evictOldestLocked()) {
+                return;
+            }
+            series = new Series();
+            mProcesses.put(key, series);
+        }
+        series.mPssKb[(int) ((mSampleCount - 1) % CAPACITY)] = (int) pssKb;
+        series.mLastSample = mSampleCount;
+    }
+
+    private boolean evictOldestLocked() {
+        String oldestKey = null;
+        long oldest = mSampleCount;
+        for (Map.Entry<String, Series> e : mProcesses.entrySet()) {
+            if (e.getValue().mLastSample < oldest) {
+                oldest = e.getValue().mLastSample;
+                oldestKey = e.getKey();
+            }
+        }
+        if (oldestKey == null) {
+            // all of them are in the current sample
+            return false;
+        }
+        mProcesses.remove(oldestKey);
+        return true;
+    }
+
+    synchronized int getSampleCount() {
+        return (int) Math.min(mSampleCount, CAPACITY);
+    }
+
+    /**
+     * @return Sample times, oldest first, see {@link android.os.SystemClock#uptimeMillis}
+     */
+    synchronized long[] getTimes() {
+        final int N = getSampleCount();
+        long[] out = new long[N];
+        final int first = (int) ((mSampleCount - N) % CAPACITY);
+        for (int i=0; i<N; i++) {
+            out[i] = mTimes[(first + i) % CAPACITY];
+        }
+        return out;
+    }
+
+    /**
+     * @return Memory available to apps (free plus cached) in bytes, oldest
+     *         first
+     */
+    synchronized long[] getAvailable() {
+        final int N = getSampleCount();
+        long[] out = new long[N];
+        final int first = (int) ((mSampleCount - N) % CAPACITY);
+        for (int i=0; i<N; i++) {
+            final int slot = (first + i) % CAPACITY;
+            out[i] = ((long) mFreeKb[slot] + mCachedKb[slot]) * 1024;
+        }
+        return out;
+    }
+
+    /**
+     * @return The process' PSS in bytes, oldest first, 0 where it wasn't
+     *         running; or null if it hasn't been seen
+     */
+    synchronized long[] getProcessPss(int uid, String processName) {
+        Series series = mProcesses.get(keyFor(uid, processName));
+        if (series == null) {
+            return null;
+        }
+        final int N = getSampleCount();
+        long[] out = new long[N];
+        final int first = (int) ((mSampleCount - N) % CAPACITY);
+        for (int i=0; i<N; i++) {
+            out[i] = (long) series.mPssKb[(first + i) % CAPACITY] * 1024;
+        }
+        return out;
+    }
+}
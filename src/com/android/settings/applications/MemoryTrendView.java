@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.view.View;
+
+/**
+ * Small line chart of a memory series from {@link MemoryHistory}, scaled
+ * from zero to the largest value, with time along the x axis.
+ *
+ * Samples are only taken while the running services screen is updating,
+ * so where two samples are much further apart than
+ * {@link MemoryHistory#SAMPLE_INTERVAL} the line is broken rather than
+ * drawn straight across the time nobody was sampling.
+ */
+public class MemoryTrendView extends View {
+    static final int LINE_COLOR = 0xff0099cc;
+    static final int FILL_COLOR = 0x400099cc;
+    static final int AXIS_COLOR = 0xff555555;
+
+    // Longest gap between samples that is still drawn as a line.
+    static final long MAX_GAP = 3 * MemoryHistory.SAMPLE_INTERVAL;
+
+    private long[] mTimes;
+    private long[] mValues;
+
+    private final Paint mLinePaint = new Paint();
+    private final Paint mFillPaint = new Paint();
+    private final Paint mAxisPaint = new Paint();
+    private final Path mLinePath = new Path();
+    private final Path mFillPath = new Path();
+
+    public MemoryTrendView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        final int lineWidth = getResources().getDisplayMetrics().densityDpi
+                >= DisplayMetrics.DENSITY_HIGH ? 2 : 1;
+        mLinePaint.setStyle(Paint.Style.STROKE);
+        mLinePaint.setColor(LINE_COLOR);
+        mLinePaint.setStrokeWidth(lineWidth);
+        mLinePaint.setAntiAlias(true);
+        mFillPaint.setStyle(Paint.Style.FILL);
+        mFillPaint.setColor(FILL_COLOR);
+        mAxisPaint.setColor(AXIS_COLOR);
+        mAxisPaint.setStrokeWidth(lineWidth);
+    }
+
+    /**
+     * @param times Sample times, oldest first
+     * @param values Value of each sample; null to show nothing
+     */
+    public void setSeries(long[] times, long[] values) {
+        mTimes = times;
+        mValues = values;
+        setVisibility(values != null && values.length >= 2 ? VISIBLE : GONE);
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        final long[] times = mTimes;
+        final long[] values = mValues;
+        if (values == null) {
+            return;
+        }
+        // tolerate arrays of different lengths
+        final int N = Math.min(times.length, values.length);
+        if (N < 2) {
+            return;
+        }
+        final int left = getPaddingLeft();
+        final int top = getPaddingTop();
+        final int width = getWidth() - left - getPaddingRight();
+        final int height = getHeight() - top - getPaddingBottom();
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+
+        long max = 1;
+        for (int i=0; i<N; i++) {
+            if (values[i] > max) {
+                max = values[i];
+            }
+        }
+        final long start = times[0];
+        final long span = Math.max(times[N-1] - start, 1);
+        final float bottom = top + height;
+
+        mLinePath.reset();
+        mFillPath.reset();
+        float lastX = left;
+        for (int i=0; i<N; i++) {
+            float x = left + width * (float)(times[i] - start) / span;
+            float y = bottom - height * (float)values[i] / max;
+            if (i == 0 || times[i] - times[i-1] > MAX_GAP) {
+                if (i > 0) {
+                    // close off the area under the segment before the gap
+                    mFillPath.lineTo(lastX, bottom);
+                    mFillPath.close();
+                }
+                mLinePath.moveTo(x, y);
+                mFillPath.moveTo(x, bottom);
+            } else {
+                mLinePath.lineTo(x, y);
+            }
+            mFillPath.lineTo(x, y);
+            lastX = x;
+        }
+        mFillPath.lineTo(lastX, bottom);
+        mFillPath.close();
+
+        canvas.drawPath(mFillPath, mFillPaint);
+        canvas.drawPath(mLinePath, mLinePaint);
+        canvas.drawLine(left, bottom, left + width, bottom, mAxisPaint);
+    }
+}
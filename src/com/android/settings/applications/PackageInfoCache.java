@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityThread;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageItemInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Process-wide cache of the package manager lookups done for the running
+ * services list: service and application infos, the packages of a uid,
+ * and resolved labels.
+ *
+ * Entries live until a package broadcast says the package was changed,
+ * or the locale changes; lookups that failed are remembered too, so
+ * polling the running processes doesn't keep asking for them.
+ */
+final class PackageInfoCache {
+    private static final String TAG = "PackageInfoCache";
+    private static final boolean DEBUG = false;
+
+    private static final Object sLock = new Object();
+    private static PackageInfoCache sInstance;
+
+    // Stands in for a lookup that found nothing.
+    private static final Object MISSING = new Object();
+
+    private final HashMap<String, Object> mServiceInfos = new HashMap<String, Object>();
+    private final HashMap<String, Object> mAppInfos = new HashMap<String, Object>();
+    private final HashMap<String, Object> mPackageInfos = new HashMap<String, Object>();
+    private final SparseArray<String[]> mPackagesForUid = new SparseArray<String[]>();
+    private final HashMap<String, CharSequence> mLabels = new HashMap<String, CharSequence>();
+
+    private int mHits;
+    private int mMisses;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                String[] pkgList = intent.getStringArrayExtra(
+                        Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                if (pkgList != null) {
+                    for (String pkgName : pkgList) {
+                        invalidate(pkgName);
+                    }
+                }
+            } else if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                clear();
+            } else if (intent.getData() != null) {
+                invalidate(intent.getData().getEncodedSchemeSpecificPart());
+            }
+        }
+    };
+
+    static PackageInfoCache getInstance(Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new PackageInfoCache(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private PackageInfoCache(Context context) {
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mReceiver, filter);
+        IntentFilter otherFilter = new IntentFilter();
+        otherFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        otherFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        otherFilter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        context.registerReceiver(mReceiver, otherFilter);
+    }
+
+    /**
+     * @return The service's info for the given user, or null
+     */
+    synchronized ServiceInfo getServiceInfo(ComponentName component, int userId) {
+        final String key = userId + ":" + component.flattenToShortString();
+        Object info = mServiceInfos.get(key);
+        if (info == null) {
+            mMisses++;
+            try {
+                info = ActivityThread.getPackageManager().getServiceInfo(component,
+                        PackageManager.GET_UNINSTALLED_PACKAGES, userId);
+            } catch (RemoteException e) {
+                // don't remember this one
+                return null;
+            }
+            mServiceInfos.put(key, info != null ? info : MISSING);
+        } else {
+            mHits++;
+        }
+        return info != MISSING ? (ServiceInfo) info : null;
+    }
+
+    /**
+     * @return The package's info, or null if there is no such package
+     */
+    synchronized ApplicationInfo getApplicationInfo(PackageManager pm, String packageName) {
+        Object info = mAppInfos.get(packageName);
+        if (info == null) {
+            mMisses++;
+            try {
+                info = pm.getApplicationInfo(packageName,
+                        PackageManager.GET_UNINSTALLED_PACKAGES);
+            } catch (PackageManager.NameNotFoundException e) {
+                info = MISSING;
+            }
+            mAppInfos.put(packageName, info);
+        } else {
+            mHits++;
+        }
+        return info != MISSING ? (ApplicationInfo) info : null;
+    }
+
+    /**
+     * @return The package's info without flags, or null if there is no
+     *         such package
+     */
+    synchronized PackageInfo getPackageInfo(PackageManager pm, String packageName) {
+        Object info = mPackageInfos.get(packageName);
+        if (info == null) {
+            mMisses++;
+            try {
+                info = pm.getPackageInfo(packageName, 0);
+            } catch (PackageManager.NameNotFoundException e) {
+                info = MISSING;
+            }
+            mPackageInfos.put(packageName, info);
+        } else {
+            mHits++;
+        }
+        return info != MISSING ? (PackageInfo) info : null;
+    }
+
+    synchronized String[] getPackagesForUid(PackageManager pm, int uid) {
+        int index = mPackagesForUid.indexOfKey(uid);
+        if (index >= 0) {
+            mHits++;
+            return mPackagesForUid.valueAt(index);
+        }
+        mMisses++;
+        String[] pkgs = pm.getPackagesForUid(uid);
+        mPackagesForUid.put(uid, pkgs);
+        return pkgs;
+    }
+
+    /**
+     * @return The item's label, see {@link PackageItemInfo#loadLabel}
+     */
+    synchronized CharSequence getLabel(PackageManager pm, PackageItemInfo info) {
+        final String key = info.packageName + '/' + info.name;
+        CharSequence label = mLabels.get(key);
+        if (label == null) {
+            mMisses++;
+            label = info.loadLabel(pm);
+            if (label != null) {
+                mLabels.put(key, label);
+            }
+        } else {
+            mHits++;
+        }
+        return label;
+    }
+
+    /**
+     * @return A string resource of the package, or null if it can't be
+     *         loaded
+     */
+    synchronized CharSequence getText(PackageManager pm, String packageName, int resId,
+            ApplicationInfo appInfo) {
+        final String key = packageName + '#' + resId;
+        CharSequence text = mLabels.get(key);
+        if (text == null) {
+            mMisses++;
+            text = pm.getText(packageName, resId, appInfo);
+            if (text != null) {
+                mLabels.put(key, text);
+            }
+        } else {
+            mHits++;
+        }
+        return text;
+    }
+
+    /**
+     * Forget everything about a package that was changed or removed
+     */
+    synchronized void invalidate(String packageName) {
+        if (DEBUG) Log.i(TAG, "Invalidating " + packageName);
+        final String prefix = packageName + '/';
+        Iterator<Map.Entry<String, Object>> it = mServiceInfos.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Object> e = it.next();
+            Object info = e.getValue();
+            if (info == MISSING || packageName.equals(((ServiceInfo) info).packageName)) {
+                it.remove();
+            }
+        }
+        mAppInfos.remove(packageName);
+        mPackageInfos.remove(packageName);
+        Iterator<String> lit = mLabels.keySet().iterator();
+        while (lit.hasNext()) {
+            String key = lit.next();
+            if (key.startsWith(prefix) || key.startsWith(packageName + '#')) {
+                lit.remove();
+            }
+        }
+        // uids can gain or lose packages with any install
+        mPackagesForUid.clear();
+        // a process name that didn't resolve may be this package now
+        Iterator<Object> ait = mAppInfos.values().iterator();
+        while (ait.hasNext()) {
+            if (ait.next() == MISSING) {
+                ait.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        if (DEBUG) Log.i(TAG, "Clearing, " + this);
+        mServiceInfos.clear();
+        mAppInfos.clear();
+        mPackageInfos.clear();
+        mPackagesForUid.clear();
+        mLabels.clear();
+    }
+
+    synchronized int getHitCount() {
+        return mHits;
+    }
+
+    synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PackageInfoCache{hits=" + mHits + ", misses=" + mMisses
+                + ", services=" + mServiceInfos.size() + ", apps=" + mAppInfos.size()
+                + ", labels=" + mLabels.size() + "}";
+    }
+}
@@ -24,6 +24,7 @@ import android.app.ActivityManager;
 import android.app.Dialog;
 import android.app.Fragment;
 import android.content.Context;
+import android.content.pm.PackageItemInfo;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.SystemClock;
@@ -47,6 +48,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 public class RunningProcessesView extends FrameLayout
         implements AdapterView.OnItemClickListener, RecyclerListener,
@@ -73,6 +75,7 @@ public class RunningProcessesView extends FrameLayout
     ListView mListView;
     ServiceListAdapter mAdapter;
     LinearColorBar mColorBar;
+    MemoryTrendView mMemoryTrend;
     TextView mBackgroundProcessText;
     TextView mForegroundProcessText;
     
@@ -95,6 +98,19 @@ public class RunningProcessesView extends FrameLayout
         ViewHolder mHolder;
         long mFirstRunTime;
         boolean mSetBackground;
+        // What the row was bound with, to tell whether it needs rebinding.
+        CharSequence mBoundLabel;
+        String mBoundDescription;
+        PackageItemInfo mBoundPackageInfo;
+        boolean mBoundBackground;
+
+        boolean isStale() {
+            return mBoundLabel != mItem.mDisplayLabel
+                    || mBoundDescription != mItem.mDescription
+                    || mBoundPackageInfo != mItem.mPackageInfo
+                    || mBoundBackground != mItem.mBackground
+                    || mFirstRunTime != mItem.mActiveSince;
+        }
         
         void updateTime(Context context, StringBuilder builder) {
             TextView uptimeView = null;
@@ -185,6 +201,10 @@ public class RunningProcessesView extends FrameLayout
                 ai.mItem = item;
                 ai.mHolder = this;
                 ai.mFirstRunTime = item.mActiveSince;
+                ai.mBoundLabel = item.mDisplayLabel;
+                ai.mBoundDescription = item.mDescription;
+                ai.mBoundPackageInfo = item.mPackageInfo;
+                ai.mBoundBackground = item.mBackground;
                 if (item.mBackground) {
                     description.setText(rootView.getContext().getText(R.string.cached));
                 } else {
@@ -234,22 +254,32 @@ public class RunningProcessesView extends FrameLayout
             return mShowBackground;
         }
 
-        void refreshItems() {
+        /**
+         * @return Whether rows were added, removed or reordered
+         */
+        boolean refreshItems() {
             ArrayList<RunningState.MergedItem> newItems =
                 mShowBackground ? mState.getCurrentBackgroundItems()
                         : mState.getCurrentMergedItems();
-            if (mOrigItems != newItems) {
-                mOrigItems = newItems;
-                if (newItems == null) {
-                    mItems.clear();
-                } else {
-                    mItems.clear();
-                    mItems.addAll(newItems);
-                    if (mShowBackground) {
-                        Collections.sort(mItems, mState.mBackgroundComparator);
-                    }
+            if (mOrigItems == newItems) {
+                return false;
+            }
+            mOrigItems = newItems;
+            ArrayList<RunningState.MergedItem> items = new ArrayList<RunningState.MergedItem>();
+            if (newItems != null) {
+                items.addAll(newItems);
+                if (mShowBackground) {
+                    Collections.sort(items, mState.mBackgroundComparator);
                 }
             }
+            // Items are reused across updates, so an unchanged list
+            // holds the same items in the same order.
+            if (items.equals(mItems)) {
+                return false;
+            }
+            mItems.clear();
+            mItems.addAll(items);
+            return true;
         }
         
         public boolean hasStableIds() {
@@ -317,8 +347,11 @@ public class RunningProcessesView extends FrameLayout
     void refreshUi(boolean dataChanged) {
         if (dataChanged) {
             ServiceListAdapter adapter = (ServiceListAdapter)(mListView.getAdapter());
-            adapter.refreshItems();
-            adapter.notifyDataSetChanged();
+            if (adapter.refreshItems()) {
+                adapter.notifyDataSetChanged();
+            } else {
+                rebindStaleItems();
+            }
         }
         
         if (mDataAvail != null) {
@@ -377,6 +410,11 @@ public class RunningProcessesView extends FrameLayout
                     mLastServiceProcessMemory/totalMem,
                     mLastBackgroundProcessMemory/totalMem);
         }
+
+        MemoryHistory history = mState.getMemoryHistory();
+        synchronized (history) {
+            mMemoryTrend.setSeries(history.getTimes(), history.getAvailable());
+        }
     }
     
     public void onItemClick(AdapterView<?> parent, View v, int position, long id) {
@@ -429,6 +467,7 @@ public class RunningProcessesView extends FrameLayout
         mAdapter = new ServiceListAdapter(mState);
         mListView.setAdapter(mAdapter);
         mColorBar = (LinearColorBar)findViewById(R.id.color_bar);
+        mMemoryTrend = (MemoryTrendView)findViewById(R.id.memory_trend);
         mBackgroundProcessText = (TextView)findViewById(R.id.backgroundText);
         mBackgroundProcessText.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -468,6 +507,21 @@ public class RunningProcessesView extends FrameLayout
         return false;
     }
 
+    /**
+     * Rebind just the visible rows whose item changed, for when the list
+     * itself kept the same rows.
+     */
+    void rebindStaleItems() {
+        synchronized (mState.mLock) {
+            for (Map.Entry<View, ActiveItem> e : mActiveItems.entrySet()) {
+                ActiveItem ai = e.getValue();
+                if (ai.isStale()) {
+                    e.setValue(ai.mHolder.bind(mState, ai.mItem, mBuilder));
+                }
+            }
+        }
+    }
+
     void updateTimes() {
         Iterator<ActiveItem> it = mActiveItems.values().iterator();
         while (it.hasNext()) {
@@ -86,6 +86,8 @@ public class RunningServiceDetails extends Fragment
         RunningState.ServiceItem mServiceItem;
         RunningProcessesView.ActiveItem mActiveItem;
         RunningProcessesView.ViewHolder mViewHolder;
+        RunningState.ProcessItem mProcessItem;
+        MemoryTrendView mMemoryTrend;
         PendingIntent mManageIntent;
         ComponentName mInstaller;
 
@@ -338,6 +340,8 @@ public class RunningServiceDetails extends Fragment
         detail.mRootView = root;
         detail.mViewHolder = new RunningProcessesView.ViewHolder(root);
         detail.mActiveItem = detail.mViewHolder.bind(mState, pi, mBuilder);
+        detail.mProcessItem = pi;
+        detail.mMemoryTrend = (MemoryTrendView)root.findViewById(R.id.memory_trend);
         
         TextView description = (TextView)root.findViewById(R.id.comp_description);
         if (pi.mUserId != UserHandle.myUserId()) {
@@ -615,9 +619,24 @@ public class RunningServiceDetails extends Fragment
             // And since we know we have the data, let's show the UI right away
             // to avoid flicker.
             refreshUi(true);
+            updateMemoryTrends();
         }
     }
     
+    void updateMemoryTrends() {
+        MemoryHistory history = mState.getMemoryHistory();
+        synchronized (history) {
+            long[] times = history.getTimes();
+            for (int i=0; i<mActiveDetails.size(); i++) {
+                ActiveDetail ad = mActiveDetails.get(i);
+                if (ad.mMemoryTrend != null) {
+                    ad.mMemoryTrend.setSeries(times, history.getProcessPss(
+                            ad.mProcessItem.mUid, ad.mProcessItem.mProcessName));
+                }
+            }
+        }
+    }
+
     void updateTimes() {
         if (mSnippetActiveItem != null) {
             mSnippetActiveItem.updateTime(getActivity(), mBuilder);
@@ -637,10 +656,12 @@ public class RunningServiceDetails extends Fragment
             case REFRESH_DATA:
                 refreshUi(false);
                 updateTimes();
+                updateMemoryTrends();
                 break;
             case REFRESH_STRUCTURE:
                 refreshUi(true);
                 updateTimes();
+                updateMemoryTrends();
                 break;
         }
     }
@@ -16,12 +16,12 @@
 
 package com.android.settings.applications;
 
+import com.android.internal.util.MemInfoReader;
 import com.android.settings.R;
 import com.android.settings.users.UserUtils;
 
 import android.app.ActivityManager;
 import android.app.ActivityManagerNative;
-import android.app.ActivityThread;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
@@ -30,7 +30,6 @@ import android.content.pm.PackageItemInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
 import android.content.pm.UserInfo;
-import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.Drawable.ConstantState;
 import android.os.Handler;
@@ -38,6 +37,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.format.Formatter;
@@ -45,6 +45,7 @@ import android.util.Log;
 import android.util.SparseArray;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -58,6 +59,7 @@ import java.util.List;
 public class RunningState {
     static final String TAG = "RunningState";
     static final boolean DEBUG_COMPARE = false;
+    static final boolean DEBUG_CACHE = false;
 
     static Object sGlobalLock = new Object();
     static RunningState sInstance;
@@ -69,6 +71,9 @@ public class RunningState {
 
     static final long TIME_UPDATE_DELAY = 1000;
     static final long CONTENTS_UPDATE_DELAY = 2000;
+    // Polling backs off up to this while nothing is starting or stopping;
+    // memory use is still refreshed at least this often.
+    static final long MAX_CONTENTS_UPDATE_DELAY = 10000;
 
     static final int MAX_SERVICES = 100;
 
@@ -77,6 +82,7 @@ public class RunningState {
     final PackageManager mPm;
     final UserManager mUm;
     final int mMyUserId;
+    final PackageInfoCache mInfoCache;
 
     OnRefreshUiListener mRefreshUiListener;
 
@@ -136,6 +142,17 @@ public class RunningState {
     // Temporary structure used when updating above information.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
 
+    // What the activity manager reported at the last full update, so that
+    // polls returning the same thing can skip rebuilding.
+    List<ActivityManager.RunningServiceInfo> mLastServices;
+    List<ActivityManager.RunningAppProcessInfo> mLastProcesses;
+    long mLastFullUpdateTime;
+    long mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+
+    // Memory use over time, sampled from the PSS we retrieve anyway.
+    final MemoryHistory mMemoryHistory = new MemoryHistory();
+    final MemInfoReader mMemInfoReader = new MemInfoReader();
+
     int mSequence = 0;
 
     final Comparator<RunningState.MergedItem> mBackgroundComparator
@@ -204,6 +221,8 @@ public class RunningState {
     boolean mResumed;
     boolean mHaveData;
     boolean mWatchingBackgroundItems;
+    // Whether any item shows a running time, which needs the UI ticking.
+    boolean mHaveTimedItems;
 
     ArrayList<BaseItem> mItems = new ArrayList<BaseItem>();
     ArrayList<MergedItem> mMergedItems = new ArrayList<MergedItem>();
@@ -231,19 +250,44 @@ public class RunningState {
                 case MSG_RESET_CONTENTS:
                     reset();
                     break;
-                case MSG_UPDATE_CONTENTS:
+                case MSG_UPDATE_CONTENTS: {
                     synchronized (mLock) {
                         if (!mResumed) {
                             return;
                         }
                     }
-                    Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
-                    mHandler.sendMessage(cmd);
+                    final boolean force = msg.arg1 != 0;
+                    List<ActivityManager.RunningServiceInfo> services
+                            = mAm.getRunningServices(MAX_SERVICES);
+                    List<ActivityManager.RunningAppProcessInfo> processes
+                            = mAm.getRunningAppProcesses();
+                    final long now = SystemClock.uptimeMillis();
+                    final boolean same = !force && mLastServices != null
+                            && sameServices(mLastServices, services)
+                            && sameProcesses(mLastProcesses, processes);
+                    if (!same || now - mLastFullUpdateTime >= MAX_CONTENTS_UPDATE_DELAY) {
+                        mLastServices = services != null
+                                ? new ArrayList<ActivityManager.RunningServiceInfo>(services)
+                                : new ArrayList<ActivityManager.RunningServiceInfo>();
+                        mLastProcesses = processes;
+                        mLastFullUpdateTime = now;
+                        Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
+                        cmd.arg1 = update(mApplicationContext, services, processes) ? 1 : 0;
+                        mHandler.sendMessage(cmd);
+                        if (DEBUG_CACHE) Log.i(TAG, "Updated, " + mInfoCache);
+                    }
+                    // Poll less often while nothing changes, and go back to
+                    // the normal rate as soon as something does.
+                    if (same) {
+                        mContentsUpdateDelay = Math.min(mContentsUpdateDelay * 3 / 2,
+                                MAX_CONTENTS_UPDATE_DELAY);
+                    } else {
+                        mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+                    }
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
-                    break;
+                    sendMessageDelayed(msg, mContentsUpdateDelay);
+                } break;
             }
         }
     };
@@ -257,19 +301,28 @@ public class RunningState {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_REFRESH_UI:
-                    mNextUpdate = msg.arg1 != 0
+                    mNextUpdate = Math.max(mNextUpdate, msg.arg1 != 0
                             ? OnRefreshUiListener.REFRESH_STRUCTURE
-                            : OnRefreshUiListener.REFRESH_DATA;
+                            : OnRefreshUiListener.REFRESH_DATA);
+                    if (!hasMessages(MSG_UPDATE_TIME)) {
+                        // Not ticking, since no running time is shown;
+                        // deliver this now.
+                        sendEmptyMessage(MSG_UPDATE_TIME);
+                    }
                     break;
                 case MSG_UPDATE_TIME:
+                    boolean ticking;
                     synchronized (mLock) {
                         if (!mResumed) {
                             return;
                         }
+                        ticking = mHaveTimedItems;
                     }
                     removeMessages(MSG_UPDATE_TIME);
-                    Message m = obtainMessage(MSG_UPDATE_TIME);
-                    sendMessageDelayed(m, TIME_UPDATE_DELAY);
+                    if (ticking) {
+                        Message m = obtainMessage(MSG_UPDATE_TIME);
+                        sendMessageDelayed(m, TIME_UPDATE_DELAY);
+                    }
 
                     if (mRefreshUiListener != null) {
                         //Log.i("foo", "Refresh UI: " + mNextUpdate
@@ -323,7 +376,7 @@ public class RunningState {
 
         public Drawable loadIcon(Context context, RunningState state) {
             if (mPackageInfo != null) {
-                return mPackageInfo.loadIcon(state.mPm);
+                return AppIconCache.getInstance(context).getIcon(mPackageInfo, state.mPm);
             }
             return null;
         }
@@ -349,6 +402,7 @@ public class RunningState {
         
         final int mUid;
         final String mProcessName;
+        final PackageInfoCache mInfoCache;
         int mPid;
         
         ProcessItem mClient;
@@ -372,6 +426,7 @@ public class RunningState {
                     R.string.service_process_name, processName);
             mUid = uid;
             mProcessName = processName;
+            mInfoCache = PackageInfoCache.getInstance(context);
         }
         
         void ensureLabel(PackageManager pm) {
@@ -379,74 +434,62 @@ public class RunningState {
                 return;
             }
             
-            try {
-                ApplicationInfo ai = pm.getApplicationInfo(mProcessName,
-                        PackageManager.GET_UNINSTALLED_PACKAGES);
-                if (ai.uid == mUid) {
-                    mDisplayLabel = ai.loadLabel(pm);
-                    mLabel = mDisplayLabel.toString();
-                    mPackageInfo = ai;
-                    return;
-                }
-            } catch (PackageManager.NameNotFoundException e) {
+            ApplicationInfo ai = mInfoCache.getApplicationInfo(pm, mProcessName);
+            if (ai != null && ai.uid == mUid) {
+                mDisplayLabel = mInfoCache.getLabel(pm, ai);
+                mLabel = mDisplayLabel.toString();
+                mPackageInfo = ai;
+                return;
             }
             
             // If we couldn't get information about the overall
             // process, try to find something about the uid.
-            String[] pkgs = pm.getPackagesForUid(mUid);
+            String[] pkgs = mInfoCache.getPackagesForUid(pm, mUid);
             
             // If there is one package with this uid, that is what we want.
             if (pkgs.length == 1) {
-                try {
-                    ApplicationInfo ai = pm.getApplicationInfo(pkgs[0],
-                            PackageManager.GET_UNINSTALLED_PACKAGES);
-                    mDisplayLabel = ai.loadLabel(pm);
+                ai = mInfoCache.getApplicationInfo(pm, pkgs[0]);
+                if (ai != null) {
+                    mDisplayLabel = mInfoCache.getLabel(pm, ai);
                     mLabel = mDisplayLabel.toString();
                     mPackageInfo = ai;
                     return;
-                } catch (PackageManager.NameNotFoundException e) {
                 }
             }
             
             // If there are multiple, see if one gives us the official name
             // for this uid.
             for (String name : pkgs) {
-                try {
-                    PackageInfo pi = pm.getPackageInfo(name, 0);
-                    if (pi.sharedUserLabel != 0) {
-                        CharSequence nm = pm.getText(name,
-                                pi.sharedUserLabel, pi.applicationInfo);
-                        if (nm != null) {
-                            mDisplayLabel = nm;
-                            mLabel = nm.toString();
-                            mPackageInfo = pi.applicationInfo;
-                            return;
-                        }
+                PackageInfo pi = mInfoCache.getPackageInfo(pm, name);
+                if (pi != null && pi.sharedUserLabel != 0) {
+                    CharSequence nm = mInfoCache.getText(pm, name,
+                            pi.sharedUserLabel, pi.applicationInfo);
+                    if (nm != null) {
+                        mDisplayLabel = nm;
+                        mLabel = nm.toString();
+                        mPackageInfo = pi.applicationInfo;
+                        return;
                     }
-                } catch (PackageManager.NameNotFoundException e) {
                 }
             }
             
             // If still don't have anything to display, just use the
             // service info.
             if (mServices.size() > 0) {
-                ApplicationInfo ai = mServices.values().iterator().next()
+                ai = mServices.values().iterator().next()
                         .mServiceInfo.applicationInfo;
                 mPackageInfo = ai;
-                mDisplayLabel = mPackageInfo.loadLabel(pm);
+                mDisplayLabel = mInfoCache.getLabel(pm, ai);
                 mLabel = mDisplayLabel.toString();
                 return;
             }
             
             // Finally... whatever, just pick the first package's name.
-            try {
-                ApplicationInfo ai = pm.getApplicationInfo(pkgs[0],
-                        PackageManager.GET_UNINSTALLED_PACKAGES);
-                mDisplayLabel = ai.loadLabel(pm);
+            ai = mInfoCache.getApplicationInfo(pm, pkgs[0]);
+            if (ai != null) {
+                mDisplayLabel = mInfoCache.getLabel(pm, ai);
                 mLabel = mDisplayLabel.toString();
                 mPackageInfo = ai;
-                return;
-            } catch (PackageManager.NameNotFoundException e) {
             }
         }
 
@@ -459,19 +502,14 @@ public class RunningState {
                 changed = true;
                 si = new ServiceItem(mUserId);
                 si.mRunningService = service;
-                try {
-                    si.mServiceInfo = ActivityThread.getPackageManager().getServiceInfo(
-                            service.service, PackageManager.GET_UNINSTALLED_PACKAGES,
-                            UserHandle.getUserId(service.uid));
-
-                    if (si.mServiceInfo == null) {
-                        Log.d("RunningService", "getServiceInfo returned null for: "
-                                + service.service);
-                        return false;
-                    }
-                } catch (RemoteException e) {
+                si.mServiceInfo = mInfoCache.getServiceInfo(service.service,
+                        UserHandle.getUserId(service.uid));
+                if (si.mServiceInfo == null) {
+                    Log.d("RunningService", "getServiceInfo returned null for: "
+                            + service.service);
+                    return false;
                 }
-                si.mDisplayLabel = makeLabel(pm,
+                si.mDisplayLabel = makeLabel(pm, mInfoCache,
                         si.mRunningService.service.getClassName(), si.mServiceInfo);
                 mLabel = mDisplayLabel != null ? mDisplayLabel.toString() : null;
                 si.mPackageInfo = si.mServiceInfo.applicationInfo;
@@ -489,14 +527,10 @@ public class RunningState {
                     si.mShownAsStarted = false;
                     changed = true;
                 }
-                try {
-                    Resources clientr = pm.getResourcesForApplication(service.clientPackage);
-                    String label = clientr.getString(service.clientLabel);
-                    si.mDescription = context.getResources().getString(
-                            R.string.service_client_name, label);
-                } catch (PackageManager.NameNotFoundException e) {
-                    si.mDescription = null;
-                }
+                CharSequence label = mInfoCache.getText(pm, service.clientPackage,
+                        service.clientLabel, null);
+                si.mDescription = label != null ? context.getResources().getString(
+                        R.string.service_client_name, label) : null;
             } else {
                 if (!si.mShownAsStarted) {
                     si.mShownAsStarted = true;
@@ -710,9 +744,15 @@ public class RunningState {
     
     static CharSequence makeLabel(PackageManager pm,
             String className, PackageItemInfo item) {
+        return makeLabel(pm, null, className, item);
+    }
+
+    static CharSequence makeLabel(PackageManager pm, PackageInfoCache cache,
+            String className, PackageItemInfo item) {
         if (item != null && (item.labelRes != 0
                 || item.nonLocalizedLabel != null)) {
-            CharSequence label = item.loadLabel(pm);
+            CharSequence label = cache != null ? cache.getLabel(pm, item)
+                    : item.loadLabel(pm);
             if (label != null) {
                 return label;
             }
@@ -741,6 +781,7 @@ public class RunningState {
         mPm = mApplicationContext.getPackageManager();
         mUm = (UserManager)mApplicationContext.getSystemService(Context.USER_SERVICE);
         mMyUserId = UserHandle.myUserId();
+        mInfoCache = PackageInfoCache.getInstance(mApplicationContext);
         mResumed = false;
         mBackgroundThread = new HandlerThread("RunningState:Background");
         mBackgroundThread.start();
@@ -757,9 +798,10 @@ public class RunningState {
                 mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
                 mBackgroundHandler.sendEmptyMessage(MSG_RESET_CONTENTS);
             }
-            if (!mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)) {
-                mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
-            }
+            // Whatever happened while paused, start over at the normal rate.
+            mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
+            mBackgroundHandler.sendMessage(
+                    mBackgroundHandler.obtainMessage(MSG_UPDATE_CONTENTS, 1, 0));
             mHandler.sendEmptyMessage(MSG_UPDATE_TIME);
         }
     }
@@ -767,7 +809,8 @@ public class RunningState {
     void updateNow() {
         synchronized (mLock) {
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
-            mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
+            mBackgroundHandler.sendMessage(
+                    mBackgroundHandler.obtainMessage(MSG_UPDATE_CONTENTS, 1, 0));
         }
     }
 
@@ -810,7 +853,59 @@ public class RunningState {
         return false;
     }
 
+    private static boolean sameServices(List<ActivityManager.RunningServiceInfo> lhs,
+            List<ActivityManager.RunningServiceInfo> rhs) {
+        final int N = lhs != null ? lhs.size() : 0;
+        if (N != (rhs != null ? rhs.size() : 0)) {
+            return false;
+        }
+        for (int i=0; i<N; i++) {
+            ActivityManager.RunningServiceInfo a = lhs.get(i);
+            ActivityManager.RunningServiceInfo b = rhs.get(i);
+            if (a.pid != b.pid || a.uid != b.uid || a.foreground != b.foreground
+                    || a.started != b.started || a.restarting != b.restarting
+                    || a.activeSince != b.activeSince || a.clientCount != b.clientCount
+                    || a.crashCount != b.crashCount || a.flags != b.flags
+                    || a.clientLabel != b.clientLabel
+                    || !equal(a.service, b.service) || !equal(a.process, b.process)
+                    || !equal(a.clientPackage, b.clientPackage)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameProcesses(List<ActivityManager.RunningAppProcessInfo> lhs,
+            List<ActivityManager.RunningAppProcessInfo> rhs) {
+        final int N = lhs != null ? lhs.size() : 0;
+        if (N != (rhs != null ? rhs.size() : 0)) {
+            return false;
+        }
+        for (int i=0; i<N; i++) {
+            ActivityManager.RunningAppProcessInfo a = lhs.get(i);
+            ActivityManager.RunningAppProcessInfo b = rhs.get(i);
+            if (a.pid != b.pid || a.uid != b.uid || a.importance != b.importance
+                    || a.lru != b.lru || a.flags != b.flags
+                    || a.importanceReasonCode != b.importanceReasonCode
+                    || a.importanceReasonPid != b.importanceReasonPid
+                    || !equal(a.processName, b.processName)
+                    || !equal(a.importanceReasonComponent, b.importanceReasonComponent)
+                    || !Arrays.equals(a.pkgList, b.pkgList)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == b || (a != null && a.equals(b));
+    }
+
     private void reset() {
+        mLastServices = null;
+        mLastProcesses = null;
+        // labels may depend on the configuration
+        mInfoCache.clear();
         mServiceProcessesByName.clear();
         mServiceProcessesByPid.clear();
         mInterestingProcesses.clear();
@@ -852,17 +947,17 @@ public class RunningState {
         userItem.mChildren.add(newItem);
     }
 
-    private boolean update(Context context, ActivityManager am) {
+    private boolean update(Context context,
+            List<ActivityManager.RunningServiceInfo> services,
+            List<ActivityManager.RunningAppProcessInfo> processes) {
         final PackageManager pm = context.getPackageManager();
         
         mSequence++;
         
         boolean changed = false;
 
-        // Retrieve list of services, filtering out anything that definitely
+        // Filter the list of services, leaving out anything that definitely
         // won't be shown in the UI.
-        List<ActivityManager.RunningServiceInfo> services 
-                = am.getRunningServices(MAX_SERVICES);
         int NS = services != null ? services.size() : 0;
         for (int i=0; i<NS; i++) {
             ActivityManager.RunningServiceInfo si = services.get(i);
@@ -886,10 +981,8 @@ public class RunningState {
             }
         }
 
-        // Retrieve list of running processes, organizing them into a sparse
-        // array for easy retrieval.
-        List<ActivityManager.RunningAppProcessInfo> processes
-                = am.getRunningAppProcesses();
+        // Organize the running processes into a sparse array for easy
+        // retrieval.
         final int NP = processes != null ? processes.size() : 0;
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
@@ -1231,9 +1324,22 @@ public class RunningState {
                 }
             }
 
+            boolean haveTimedItems = false;
+            for (int i=0; i<newMergedItems.size(); i++) {
+                if (newMergedItems.get(i).mActiveSince >= 0) {
+                    haveTimedItems = true;
+                    break;
+                }
+            }
+
             synchronized (mLock) {
                 mItems = newItems;
                 mMergedItems = newMergedItems;
+                if (haveTimedItems && !mHaveTimedItems && mResumed) {
+                    // start ticking again
+                    mHandler.sendEmptyMessage(MSG_UPDATE_TIME);
+                }
+                mHaveTimedItems = haveTimedItems;
             }
         }
         
@@ -1281,6 +1387,16 @@ public class RunningState {
             }
             long[] pss = ActivityManagerNative.getDefault()
                     .getProcessPss(pids);
+            final long now = SystemClock.uptimeMillis();
+            if (mMemoryHistory.isSampleDue(now)) {
+                mMemInfoReader.readMemInfo();
+                mMemoryHistory.startSample(now, mMemInfoReader.getFreeSize(),
+                        mMemInfoReader.getCachedSize());
+                for (int i=0; i<pids.length; i++) {
+                    ProcessItem proc = mAllProcessItems.get(i);
+                    mMemoryHistory.addProcess(proc.mUid, proc.mProcessName, pss[i]);
+                }
+            }
             int bgIndex = 0;
             for (int i=0; i<pids.length; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
@@ -1396,6 +1512,10 @@ public class RunningState {
         return changed;
     }
     
+    MemoryHistory getMemoryHistory() {
+        return mMemoryHistory;
+    }
+
     ArrayList<BaseItem> getCurrentItems() {
         synchronized (mLock) {
             return mItems;
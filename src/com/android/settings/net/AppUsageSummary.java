@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.net.NetworkStats;
+import android.os.UserHandle;
+import android.util.SparseBooleanArray;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+/**
+ * Per-UID {@link NetworkStats} collapsed the way the data usage list shows
+ * them: a row for each app of the current user, one for each other user,
+ * and single rows for removed apps, tethering and the OS.
+ *
+ * Built on the loader thread into primitive arrays with the rows already
+ * sorted by usage, largest first, so the list only creates an
+ * {@link AppItem} for the rows it actually shows. Immutable once built.
+ */
+public class AppUsageSummary {
+    private final int mSize;
+    private final int[] mKeys;
+    private final long[] mTotals;
+    // Head of each row's uid chain in mUids/mNextUid, or -1.
+    private final int[] mFirstUid;
+    private final int[] mUids;
+    private final int[] mNextUid;
+    // Collapse key to sorted row.
+    private final IntIntMap mRows;
+
+    /**
+     * Collapse the given stats for display to the given user.
+     */
+    public static AppUsageSummary build(NetworkStats stats, int currentUserId) {
+        return new AppUsageSummary(stats, currentUserId);
+    }
+
+    private AppUsageSummary(NetworkStats stats, int currentUserId) {
+        final int entries = stats != null ? stats.size() : 0;
+        final int[] keys = new int[entries];
+        final long[] totals = new long[entries];
+        final int[] firstUid = new int[entries];
+        mUids = new int[entries];
+        mNextUid = new int[entries];
+        mRows = new IntIntMap(entries);
+        final IntIntMap uidSlots = new IntIntMap(entries);
+
+        int size = 0;
+        int uidCount = 0;
+        NetworkStats.Entry entry = null;
+        for (int i = 0; i < entries; i++) {
+            entry = stats.getValues(i, entry);
+
+            final int uid = entry.uid;
+            final int key = collapseKey(uid, currentUserId);
+            int row = mRows.get(key);
+            if (row < 0) {
+                row = size++;
+                keys[row] = key;
+                firstUid[row] = -1;
+                mRows.put(key, row);
+            }
+            if (uidSlots.get(uid) < 0) {
+                // each uid collapses into exactly one row
+                final int slot = uidCount++;
+                mUids[slot] = uid;
+                mNextUid[slot] = firstUid[row];
+                firstUid[row] = slot;
+                uidSlots.put(uid, slot);
+            }
+            totals[row] += entry.rxBytes + entry.txBytes;
+        }
+
+        final int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        sortByTotal(order, totals);
+
+        mSize = size;
+        mKeys = new int[size];
+        mTotals = new long[size];
+        mFirstUid = new int[size];
+        for (int i = 0; i < size; i++) {
+            final int row = order[i];
+            mKeys[i] = keys[row];
+            mTotals[i] = totals[row];
+            mFirstUid[i] = firstUid[row];
+            mRows.put(keys[row], i);
+        }
+    }
+
+    /**
+     * Decide how to collapse items together.
+     */
+    static int collapseKey(int uid, int currentUserId) {
+        if (UserHandle.isApp(uid)) {
+            if (UserHandle.getUserId(uid) == currentUserId) {
+                return uid;
+            } else {
+                return UidDetailProvider.buildKeyForUser(UserHandle.getUserId(uid));
+            }
+        } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
+            return uid;
+        } else {
+            return android.os.Process.SYSTEM_UID;
+        }
+    }
+
+    /**
+     * Heap sort of row indexes by total descending, ties in original order,
+     * matching what sorting {@link AppItem}s gave.
+     */
+    private static void sortByTotal(int[] order, long[] totals) {
+        final int n = order.length;
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(order, totals, i, n);
+        }
+        for (int end = n - 1; end > 0; end--) {
+            final int tmp = order[0];
+            order[0] = order[end];
+            order[end] = tmp;
+            siftDown(order, totals, 0, end);
+        }
+    }
+
+    private static void siftDown(int[] order, long[] totals, int i, int n) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) {
+                return;
+            }
+            if (child + 1 < n && after(order[child + 1], order[child], totals)) {
+                child++;
+            }
+            if (!after(order[child], order[i], totals)) {
+                return;
+            }
+            final int tmp = order[i];
+            order[i] = order[child];
+            order[child] = tmp;
+            i = child;
+        }
+    }
+
+    /**
+     * @return Whether row a is listed after row b
+     */
+    private static boolean after(int a, int b, long[] totals) {
+        return totals[a] < totals[b] || (totals[a] == totals[b] && a > b);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getKey(int row) {
+        return mKeys[row];
+    }
+
+    public long getTotal(int row) {
+        return mTotals[row];
+    }
+
+    /**
+     * @return Row of the given collapse key, or -1
+     */
+    public int indexOfKey(int key) {
+        return mRows.get(key);
+    }
+
+    /**
+     * Add the uids collapsed into the given row to an item.
+     */
+    public void addUidsTo(int row, AppItem item) {
+        for (int slot = mFirstUid[row]; slot >= 0; slot = mNextUid[slot]) {
+            item.addUid(mUids[slot]);
+        }
+    }
+
+    /**
+     * @return Whether exactly these uids were collapsed into the given row
+     */
+    public boolean hasUids(int row, SparseBooleanArray uids) {
+        int count = 0;
+        for (int slot = mFirstUid[row]; slot >= 0; slot = mNextUid[slot]) {
+            if (!uids.get(mUids[slot])) {
+                return false;
+            }
+            count++;
+        }
+        return count == uids.size();
+    }
+}
@@ -30,6 +30,8 @@ import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.android.settings.DataUsageSummary.AppItem;
 
@@ -37,12 +39,16 @@ import com.android.settings.DataUsageSummary.AppItem;
  * Loader for historical chart data for both network and UID details.
  */
 public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
+    private static final String TAG = "ChartDataLoader";
+    private static final boolean LOGD = false;
+
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_APP = "app";
     private static final String KEY_FIELDS = "fields";
 
     private final INetworkStatsSession mSession;
     private final Bundle mArgs;
+    private final NetworkStatsCache.Key mCacheKey;
 
     public static Bundle buildArgs(NetworkTemplate template, AppItem app) {
         return buildArgs(template, app, FIELD_RX_BYTES | FIELD_TX_BYTES);
@@ -60,12 +66,20 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         super(context);
         mSession = session;
         mArgs = args;
+        final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
+        final AppItem app = mArgs.getParcelable(KEY_APP);
+        mCacheKey = NetworkStatsCache.Key.forChart(template, app, mArgs.getInt(KEY_FIELDS));
     }
 
     @Override
     protected void onStartLoading() {
         super.onStartLoading();
-        forceLoad();
+        final ChartData cached = NetworkStatsCache.getInstance().getChartData(mCacheKey);
+        if (cached != null) {
+            deliverResult(cached);
+        } else {
+            forceLoad();
+        }
     }
 
     @Override
@@ -74,8 +88,12 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         final AppItem app = mArgs.getParcelable(KEY_APP);
         final int fields = mArgs.getInt(KEY_FIELDS);
 
+        final NetworkStatsCache cache = NetworkStatsCache.getInstance();
+        final int generation = cache.getGeneration();
         try {
-            return loadInBackground(template, app, fields);
+            final ChartData data = loadInBackground(template, app, fields);
+            cache.put(mCacheKey, data, generation);
+            return data;
         } catch (RemoteException e) {
             // since we can't do much without history, and we don't want to
             // leave with half-baked UI, we bail hard.
@@ -85,6 +103,9 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
 
     private ChartData loadInBackground(NetworkTemplate template, AppItem app, int fields)
             throws RemoteException {
+        final long startTime = LOGD ? SystemClock.elapsedRealtime() : 0;
+        int calls = 1;
+
         final ChartData data = new ChartData();
         data.network = mSession.getHistoryForNetwork(template, fields);
 
@@ -97,6 +118,7 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
                         template, uid, SET_DEFAULT, data.detailDefault);
                 data.detailForeground = collectHistoryForUid(
                         template, uid, SET_FOREGROUND, data.detailForeground);
+                calls += 2;
             }
 
             if (size > 0) {
@@ -110,6 +132,12 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
             }
         }
 
+        if (LOGD) {
+            Log.d(TAG, "loaded " + template + " for "
+                    + (app != null ? app.uids.size() + " uids" : "network") + " with "
+                    + calls + " calls in " + (SystemClock.elapsedRealtime() - startTime)
+                    + "ms");
+        }
         return data;
     }
 
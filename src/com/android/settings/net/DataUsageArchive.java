@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkPolicy.CYCLE_NONE;
+import static android.net.NetworkPolicyManager.computeLastCycleBoundary;
+import static android.net.NetworkPolicyManager.computeNextCycleBoundary;
+import static android.text.format.DateUtils.WEEK_IN_MILLIS;
+
+import android.content.Context;
+import android.net.INetworkStatsSession;
+import android.net.NetworkPolicy;
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Per-UID usage of every network over its last few cycles, exported to a
+ * file so accounting across cycles can be answered without going back to
+ * the stats service.
+ *
+ * The archive is columnar: after a header naming the networks, each
+ * network and cycle is a block of uids followed by their received and
+ * transmitted bytes. The same rows are written as CSV next to it. Both
+ * stay in the app's private files directory, since per-uid history is
+ * otherwise only readable with READ_NETWORK_USAGE_HISTORY.
+ */
+public class DataUsageArchive {
+    private static final String TAG = "DataUsageArchive";
+    private static final boolean LOGD = false;
+
+    private static final int VERSION = 1;
+    private static final String FILE_NAME = "data_usage.archive";
+    private static final String CSV_FILE_NAME = "data_usage.csv";
+
+    // Exports and reads of the files, across instances.
+    private static final Object sLock = new Object();
+
+    /**
+     * Apps ranked by usage, see {@link #readTopApps}.
+     */
+    public static class TopApps {
+        /** Collapse keys, as the data usage list uses them. */
+        public final int[] keys;
+        public final long[] totals;
+        /** Left for the caller to fill in, one per key. */
+        public final CharSequence[] labels;
+
+        TopApps(int[] keys, long[] totals) {
+            this.keys = keys;
+            this.totals = totals;
+            this.labels = new CharSequence[keys.length];
+        }
+    }
+
+    private static class Source {
+        final String name;
+        final NetworkTemplate template;
+        final NetworkPolicy policy;
+
+        Source(String name, NetworkTemplate template, NetworkPolicy policy) {
+            this.name = name;
+            this.template = template;
+            this.policy = policy;
+        }
+    }
+
+    private final AtomicFile mFile;
+    private final AtomicFile mCsvFile;
+    private final ArrayList<Source> mSources = new ArrayList<Source>();
+
+    public DataUsageArchive(Context context) {
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+        mCsvFile = new AtomicFile(new File(context.getFilesDir(), CSV_FILE_NAME));
+    }
+
+    /**
+     * Include a network in the next {@link #export}; its cycles follow the
+     * given policy, or are four-week periods without one.
+     */
+    public void addSource(String name, NetworkTemplate template, NetworkPolicy policy) {
+        mSources.add(new Source(name, template, policy));
+    }
+
+    public File getCsvFile() {
+        return mCsvFile.getBaseFile();
+    }
+
+    /**
+     * Query every source for its last cycles and replace both files. Call
+     * off the main thread.
+     *
+     * @return Whether the export completed
+     */
+    public boolean export(INetworkStatsSession session, int cycles) {
+        synchronized (sLock) {
+            return exportLocked(session, cycles);
+        }
+    }
+
+    private boolean exportLocked(INetworkStatsSession session, int cycles) {
+        final long startTime = SystemClock.elapsedRealtime();
+        final long now = System.currentTimeMillis();
+
+        FileOutputStream fos = null;
+        FileOutputStream csvFos = null;
+        try {
+            fos = mFile.startWrite();
+            csvFos = mCsvFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            final PrintWriter csv = new PrintWriter(new OutputStreamWriter(csvFos, "UTF-8"));
+
+            out.writeInt(VERSION);
+            out.writeLong(now);
+            out.writeInt(cycles);
+            out.writeInt(mSources.size());
+            for (Source source : mSources) {
+                out.writeUTF(source.name);
+            }
+            csv.println("network,cycle_start,cycle_end,uid,rx_bytes,tx_bytes");
+
+            // one cycle is queried and written at a time
+            NetworkStats.Entry entry = null;
+            for (int i = 0; i < mSources.size(); i++) {
+                final Source source = mSources.get(i);
+                final long[] bounds = computeCycleBounds(source.policy, now, cycles);
+                for (int cycle = 0; cycle < cycles; cycle++) {
+                    final long end = bounds[cycle];
+                    final long start = bounds[cycle + 1];
+                    final NetworkStats stats = session.getSummaryForAllUid(
+                            source.template, start, end, false).groupedByUid();
+
+                    final int size = stats.size();
+                    out.writeInt(i);
+                    out.writeLong(start);
+                    out.writeLong(end);
+                    out.writeInt(size);
+                    for (int j = 0; j < size; j++) {
+                        entry = stats.getValues(j, entry);
+                        out.writeInt(entry.uid);
+                    }
+                    for (int j = 0; j < size; j++) {
+                        entry = stats.getValues(j, entry);
+                        out.writeLong(entry.rxBytes);
+                    }
+                    for (int j = 0; j < size; j++) {
+                        entry = stats.getValues(j, entry);
+                        out.writeLong(entry.txBytes);
+                        csv.println(source.name + "," + start + "," + end + "," + entry.uid
+                                + "," + entry.rxBytes + "," + entry.txBytes);
+                    }
+                }
+            }
+
+            out.flush();
+            csv.flush();
+            if (csv.checkError()) {
+                throw new IOException("problem writing csv");
+            }
+            mFile.finishWrite(fos);
+            mCsvFile.finishWrite(csvFos);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to export data usage", e);
+            failWrites(fos, csvFos);
+            return false;
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to read data usage", e);
+            failWrites(fos, csvFos);
+            return false;
+        }
+
+        if (LOGD) {
+            Log.d(TAG, "exported " + mSources.size() + " networks over " + cycles
+                    + " cycles in " + (SystemClock.elapsedRealtime() - startTime) + "ms");
+        }
+        return true;
+    }
+
+    private void failWrites(FileOutputStream fos, FileOutputStream csvFos) {
+        if (fos != null) {
+            mFile.failWrite(fos);
+        }
+        if (csvFos != null) {
+            mCsvFile.failWrite(csvFos);
+        }
+    }
+
+    /**
+     * @return Cycle boundaries, newest first; cycle i runs from
+     *         {@code bounds[i + 1]} to {@code bounds[i]}
+     */
+    private static long[] computeCycleBounds(NetworkPolicy policy, long now, int cycles) {
+        final long[] bounds = new long[cycles + 1];
+        if (policy != null && policy.cycleDay != CYCLE_NONE) {
+            bounds[0] = computeNextCycleBoundary(now, policy);
+            for (int i = 1; i <= cycles; i++) {
+                bounds[i] = computeLastCycleBoundary(bounds[i - 1], policy);
+            }
+        } else {
+            bounds[0] = now;
+            for (int i = 1; i <= cycles; i++) {
+                bounds[i] = bounds[i - 1] - WEEK_IN_MILLIS * 4;
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Rank apps by their usage across all networks over the most recent
+     * cycles of the last export. Uids are collapsed into the same rows as
+     * the data usage list shows for the given user, see
+     * {@link AppUsageSummary}. Call off the main thread.
+     *
+     * @return Up to {@code count} apps, largest first; or null if there is
+     *         no readable export
+     */
+    public TopApps readTopApps(int count, int cycles, int currentUserId) {
+        synchronized (sLock) {
+            return readTopAppsLocked(count, cycles, currentUserId);
+        }
+    }
+
+    private TopApps readTopAppsLocked(int count, int cycles, int currentUserId) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            in.readLong();
+            final int exportedCycles = in.readInt();
+            final int sourceCount = in.readInt();
+            for (int i = 0; i < sourceCount; i++) {
+                in.readUTF();
+            }
+
+            final IntIntMap indexes = new IntIntMap(64);
+            int[] keys = new int[64];
+            long[] totals = new long[64];
+            int size = 0;
+
+            int[] blockKeys = new int[0];
+            final int blocks = sourceCount * exportedCycles;
+            for (int block = 0; block < blocks; block++) {
+                in.readInt();
+                in.readLong();
+                in.readLong();
+                final int n = in.readInt();
+                // blocks of a network are newest first
+                final boolean wanted = block % exportedCycles < cycles;
+                if (!wanted) {
+                    in.skipBytes(n * (4 + 8 + 8));
+                    continue;
+                }
+
+                if (blockKeys.length < n) {
+                    blockKeys = new int[n];
+                }
+                for (int j = 0; j < n; j++) {
+                    blockKeys[j] = AppUsageSummary.collapseKey(in.readInt(), currentUserId);
+                }
+                for (int pass = 0; pass < 2; pass++) {
+                    for (int j = 0; j < n; j++) {
+                        final long bytes = in.readLong();
+                        int index = indexes.get(blockKeys[j]);
+                        if (index < 0) {
+                            if (size == keys.length) {
+                                keys = grow(keys);
+                                totals = grow(totals);
+                            }
+                            index = size++;
+                            keys[index] = blockKeys[j];
+                            indexes.put(blockKeys[j], index);
+                        }
+                        totals[index] += bytes;
+                    }
+                }
+            }
+
+            return selectTop(keys, totals, size, count);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable data usage export", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Keep the largest {@code count} totals in a small sorted window, so
+     * ranking doesn't sort every app.
+     */
+    private static TopApps selectTop(int[] keys, long[] totals, int size, int count) {
+        final int[] topKeys = new int[Math.min(count, size)];
+        final long[] topTotals = new long[topKeys.length];
+        int found = 0;
+        for (int i = 0; i < size; i++) {
+            final long total = totals[i];
+            if (total <= 0 || (found == topKeys.length
+                    && (found == 0 || total <= topTotals[found - 1]))) {
+                continue;
+            }
+            int pos = found < topKeys.length ? found++ : found - 1;
+            while (pos > 0 && topTotals[pos - 1] < total) {
+                topKeys[pos] = topKeys[pos - 1];
+                topTotals[pos] = topTotals[pos - 1];
+                pos--;
+            }
+            topKeys[pos] = keys[i];
+            topTotals[pos] = total;
+        }
+
+        final int[] resultKeys = new int[found];
+        final long[] resultTotals = new long[found];
+        System.arraycopy(topKeys, 0, resultKeys, 0, found);
+        System.arraycopy(topTotals, 0, resultTotals, 0, found);
+        return new TopApps(resultKeys, resultTotals);
+    }
+
+    private static int[] grow(int[] array) {
+        final int[] result = new int[array.length * 2];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    private static long[] grow(long[] array) {
+        final long[] result = new long[array.length * 2];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing int to int map; unlike {@link android.util.SparseIntArray}
+ * inserts don't shift arrays around, which adds up over thousands of uids.
+ */
+final class IntIntMap {
+    // Not a valid uid or collapse key.
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private int[] mKeys;
+    private int[] mValues;
+    private int mSize;
+
+    IntIntMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new int[capacity];
+        mValues = new int[capacity];
+        Arrays.fill(mKeys, EMPTY);
+        mSize = 0;
+    }
+
+    private static int hash(int key) {
+        final int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return The key's value, or -1 if it isn't mapped
+     */
+    int get(int key) {
+        final int mask = mKeys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            if (mKeys[i] == key) {
+                return mValues[i];
+            } else if (mKeys[i] == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    void put(int key, int value) {
+        final int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mKeys[i] != EMPTY) {
+            if (mKeys[i] == key) {
+                mValues[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        if ((mSize + 1) * 2 > mKeys.length) {
+            grow();
+            put(key, value);
+            return;
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        mSize++;
+    }
+
+    private void grow() {
+        final int[] keys = mKeys;
+        final int[] values = mValues;
+        allocate(keys.length * 2);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                put(keys[i], values[i]);
+            }
+        }
+    }
+}
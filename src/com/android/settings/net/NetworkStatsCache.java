@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.NetworkTemplate;
+import android.os.SystemClock;
+import android.util.SparseBooleanArray;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recently loaded {@link ChartData} and per-cycle {@link AppUsageSummary}, so
+ * flipping back to a tab or cycle that was just shown doesn't query the
+ * stats service again.
+ *
+ * Results are shared, callers must not modify them. Everything is dropped
+ * once the stats service has been asked to update, see {@link #invalidate},
+ * and entries expire on their own after {@link #MAX_AGE}.
+ */
+public class NetworkStatsCache {
+    private static final int MAX_ENTRIES = 16;
+    private static final long MAX_AGE = 60 * 1000;
+
+    private static final NetworkStatsCache sInstance = new NetworkStatsCache();
+
+    /**
+     * Identifies a query: template, app uids, fields and time range, with
+     * the parts a query doesn't use left at zero.
+     */
+    public static class Key {
+        private final NetworkTemplate mTemplate;
+        private final int[] mUids;
+        private final int mFields;
+        private final long mStart;
+        private final long mEnd;
+
+        private Key(NetworkTemplate template, AppItem app, int fields, long start, long end) {
+            mTemplate = template;
+            mUids = app != null ? uidsOf(app.uids) : null;
+            mFields = fields;
+            mStart = start;
+            mEnd = end;
+        }
+
+        public static Key forChart(NetworkTemplate template, AppItem app, int fields) {
+            return new Key(template, app, fields, 0, 0);
+        }
+
+        public static Key forSummary(NetworkTemplate template, long start, long end) {
+            return new Key(template, null, 0, start, end);
+        }
+
+        private static int[] uidsOf(SparseBooleanArray uids) {
+            final int[] result = new int[uids.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = uids.keyAt(i);
+            }
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return (mTemplate != null ? mTemplate.equals(other.mTemplate)
+                    : other.mTemplate == null)
+                    && Arrays.equals(mUids, other.mUids) && mFields == other.mFields
+                    && mStart == other.mStart && mEnd == other.mEnd;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mTemplate != null ? mTemplate.hashCode() : 0;
+            result = 31 * result + Arrays.hashCode(mUids);
+            result = 31 * result + mFields;
+            result = 31 * result + (int) (mStart ^ (mStart >>> 32));
+            result = 31 * result + (int) (mEnd ^ (mEnd >>> 32));
+            return result;
+        }
+    }
+
+    private static class Entry {
+        final Object mValue;
+        final long mLoadedAt;
+
+        Entry(Object value, long loadedAt) {
+            mValue = value;
+            mLoadedAt = loadedAt;
+        }
+    }
+
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<Key, Entry>(
+            MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    // Bumped by invalidate(), so loads started before it aren't stored.
+    private int mGeneration;
+
+    public static NetworkStatsCache getInstance() {
+        return sInstance;
+    }
+
+    public synchronized ChartData getChartData(Key key) {
+        return (ChartData) get(key);
+    }
+
+    public synchronized AppUsageSummary getSummary(Key key) {
+        return (AppUsageSummary) get(key);
+    }
+
+    private Object get(Key key) {
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - entry.mLoadedAt > MAX_AGE) {
+            mEntries.remove(key);
+            return null;
+        }
+        return entry.mValue;
+    }
+
+    /**
+     * @return Generation to pass to {@link #put} when the load is done
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Remember a result, unless the cache was invalidated since its load
+     * started.
+     */
+    public synchronized void put(Key key, Object value, int generation) {
+        if (value != null && generation == mGeneration) {
+            mEntries.put(key, new Entry(value, SystemClock.elapsedRealtime()));
+        }
+    }
+
+    /**
+     * Drop everything, e.g. after the stats service has been updated.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mEntries.clear();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
+import static android.text.format.DateUtils.SECOND_IN_MILLIS;
+
+import android.net.INetworkStatsService;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Asks the stats service to poll while data usage is showing, but only
+ * when its last poll is old enough to matter. Requests are delayed a
+ * little so quickly leaving and returning to a screen only polls once,
+ * and at most one poll is in flight across the process; a screen that
+ * asks while another's poll is in flight is told when that one finishes.
+ */
+public class StatsRefreshScheduler {
+    private static final String TAG = "StatsRefreshScheduler";
+    private static final boolean LOGD = false;
+
+    /** Stats polled more recently than this are shown as they are. */
+    private static final long STALE_AGE = MINUTE_IN_MILLIS;
+    /** Let the screen finish loading before asking for a poll. */
+    private static final long UPDATE_DELAY = 2 * SECOND_IN_MILLIS;
+
+    public interface Listener {
+        /**
+         * Called on the main thread once fresh stats are available; cached
+         * results have been dropped by then.
+         */
+        void onStatsUpdated();
+    }
+
+    private static final Object sLock = new Object();
+    private static long sLastUpdate;
+    private static boolean sUpdating;
+    // Schedulers to tell when the poll in flight finishes.
+    private static final ArrayList<StatsRefreshScheduler> sWaiting
+            = new ArrayList<StatsRefreshScheduler>();
+
+    private final INetworkStatsService mStatsService;
+    private final Handler mHandler = new Handler();
+
+    private Listener mListener;
+
+    public StatsRefreshScheduler(INetworkStatsService statsService) {
+        mStatsService = statsService;
+    }
+
+    /**
+     * Poll after a short delay if the stats are stale, replacing any poll
+     * that is still waiting.
+     */
+    public void schedule(Listener listener) {
+        mListener = listener;
+        mHandler.removeCallbacks(mUpdate);
+        synchronized (sLock) {
+            if (sUpdating) {
+                // what we show may predate it, wait for its result
+                if (LOGD) Log.d(TAG, "poll in flight, waiting for it");
+                if (!sWaiting.contains(this)) {
+                    sWaiting.add(this);
+                }
+                return;
+            }
+            if (!isStaleLocked()) {
+                if (LOGD) Log.d(TAG, "skipping poll, stats are recent");
+                return;
+            }
+        }
+        mHandler.postDelayed(mUpdate, UPDATE_DELAY);
+    }
+
+    /**
+     * Drop a waiting poll and stop reporting to the listener.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mUpdate);
+        mListener = null;
+        synchronized (sLock) {
+            sWaiting.remove(this);
+        }
+    }
+
+    private static boolean isStaleLocked() {
+        return sLastUpdate == 0 || SystemClock.elapsedRealtime() - sLastUpdate > STALE_AGE;
+    }
+
+    private final Runnable mUpdate = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (sLock) {
+                if (!sWaiting.contains(StatsRefreshScheduler.this)) {
+                    sWaiting.add(StatsRefreshScheduler.this);
+                }
+                if (sUpdating) {
+                    return;
+                }
+                sUpdating = true;
+            }
+            new UpdateTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    };
+
+    private class UpdateTask extends AsyncTask<Void, Void, Boolean> {
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            final long startTime = SystemClock.elapsedRealtime();
+            boolean updated = false;
+            try {
+                mStatsService.forceUpdate();
+                // what we loaded so far is now out of date
+                NetworkStatsCache.getInstance().invalidate();
+                updated = true;
+            } catch (RemoteException e) {
+            }
+            if (updated) {
+                synchronized (sLock) {
+                    sLastUpdate = SystemClock.elapsedRealtime();
+                }
+            }
+            if (LOGD) {
+                Log.d(TAG, "forceUpdate() took " + (SystemClock.elapsedRealtime() - startTime)
+                        + "ms");
+            }
+            return updated;
+        }
+
+        @Override
+        protected void onPostExecute(Boolean updated) {
+            // finished here rather than in the background, so nobody can
+            // start waiting on this poll after its waiters were told
+            final ArrayList<StatsRefreshScheduler> waiting;
+            synchronized (sLock) {
+                sUpdating = false;
+                waiting = new ArrayList<StatsRefreshScheduler>(sWaiting);
+                sWaiting.clear();
+            }
+            if (!updated) {
+                return;
+            }
+            for (int i = 0; i < waiting.size(); i++) {
+                final Listener listener = waiting.get(i).mListener;
+                if (listener != null) {
+                    listener.onStatsUpdated();
+                }
+            }
+        }
+    }
+}
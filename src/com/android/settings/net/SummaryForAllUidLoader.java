@@ -16,6 +16,7 @@
 
 package com.android.settings.net;
 
+import android.app.ActivityManager;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.net.INetworkStatsSession;
@@ -24,13 +25,14 @@ import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
 
-public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
+public class SummaryForAllUidLoader extends AsyncTaskLoader<AppUsageSummary> {
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_START = "start";
     private static final String KEY_END = "end";
 
     private final INetworkStatsSession mSession;
     private final Bundle mArgs;
+    private final NetworkStatsCache.Key mCacheKey;
 
     public static Bundle buildArgs(NetworkTemplate template, long start, long end) {
         final Bundle args = new Bundle();
@@ -44,22 +46,35 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         super(context);
         mSession = session;
         mArgs = args;
+        mCacheKey = NetworkStatsCache.Key.forSummary((NetworkTemplate) mArgs.getParcelable(
+                KEY_TEMPLATE), mArgs.getLong(KEY_START), mArgs.getLong(KEY_END));
     }
 
     @Override
     protected void onStartLoading() {
         super.onStartLoading();
-        forceLoad();
+        final AppUsageSummary cached = NetworkStatsCache.getInstance().getSummary(mCacheKey);
+        if (cached != null) {
+            deliverResult(cached);
+        } else {
+            forceLoad();
+        }
     }
 
     @Override
-    public NetworkStats loadInBackground() {
+    public AppUsageSummary loadInBackground() {
         final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
         final long start = mArgs.getLong(KEY_START);
         final long end = mArgs.getLong(KEY_END);
 
+        final NetworkStatsCache cache = NetworkStatsCache.getInstance();
+        final int generation = cache.getGeneration();
         try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
+            final NetworkStats stats = mSession.getSummaryForAllUid(template, start, end, false);
+            final AppUsageSummary summary = AppUsageSummary.build(
+                    stats, ActivityManager.getCurrentUser());
+            cache.put(mCacheKey, summary, generation);
+            return summary;
         } catch (RemoteException e) {
             return null;
         }
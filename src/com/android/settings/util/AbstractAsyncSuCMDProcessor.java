@@ -24,8 +24,21 @@ import android.os.AsyncTask;
  *     2) see #1.
  */
 public abstract class AbstractAsyncSuCMDProcessor extends AsyncTask<String, Void, String> {
+    // run each command with its own su -c process
+    public static final int MODE_SEQUENTIAL = 0;
+    // run the whole command list on one root shell session, stop at the first failure
+    public static final int MODE_BATCH_FAIL_FAST = 1;
+    // run the whole command list on one root shell session, keep going after failures
+    public static final int MODE_BATCH_CONTINUE = 2;
+
     // if /system needs to be mounted before command
     private boolean mMountSystem;
+    // how the commands are dispatched
+    private final int mMode;
+    // per command results when running in a batch mode
+    private CommandResult[] mResults;
+    // number of commands sent in the batch
+    private int mCommandCount;
     // return if we recieve a null command or empty command
     public final String FAILURE = "failed_no_command";
 
@@ -34,14 +47,26 @@ public abstract class AbstractAsyncSuCMDProcessor extends AsyncTask<String, Void
      * of /system partition while in background thread
      */
     public AbstractAsyncSuCMDProcessor(boolean mountSystem) {
-         this.mMountSystem = mountSystem;
+         this(mountSystem, MODE_SEQUENTIAL);
     }
 
     /**
      * Constructor that assumes /system should not be mounted
      */
     public AbstractAsyncSuCMDProcessor() {
-         this.mMountSystem = false;
+         this(false, MODE_SEQUENTIAL);
+    }
+
+    /**
+     * Constructor that selects how commands are dispatched
+     *
+     * @param mountSystem if /system should be mounted rw while running
+     * @param mode one of {@link #MODE_SEQUENTIAL}, {@link #MODE_BATCH_FAIL_FAST}
+     *             or {@link #MODE_BATCH_CONTINUE}
+     */
+    public AbstractAsyncSuCMDProcessor(boolean mountSystem, int mode) {
+         this.mMountSystem = mountSystem;
+         this.mMode = mode;
     }
 
     /**
@@ -63,6 +88,10 @@ public abstract class AbstractAsyncSuCMDProcessor extends AsyncTask<String, Void
 
         String stdout = null;
 
+        if (mMode != MODE_SEQUENTIAL) {
+            return runBatch(params);
+        }
+
         // conditionally enforce mounting
         if (mMountSystem) {
             Helpers.getMount("rw");
@@ -87,6 +116,62 @@ public abstract class AbstractAsyncSuCMDProcessor extends AsyncTask<String, Void
         return stdout;
     }
 
+    /**
+     * Ship every command to a single pooled root session and keep
+     * a {@link CommandResult} for each one
+     *
+     * @return The stdout of the last command that was run
+     */
+    private String runBatch(String... params) {
+        // validate up front so a bad list never runs half way
+        for (String param : params) {
+            if (param == null || param.trim().equals("")) {
+                return FAILURE;
+            }
+        }
+
+        mCommandCount = params.length;
+        if (mMountSystem) {
+            Helpers.getMount("rw");
+        }
+        try {
+            mResults = ShellSessionPool.runSuCommands(mMode == MODE_BATCH_FAIL_FAST, params);
+        } finally {
+            if (mMountSystem)
+                Helpers.getMount("ro");
+        }
+        if (mResults.length == 0) {
+            return null;
+        }
+        return mResults[mResults.length - 1].getStdout();
+    }
+
+    /**
+     * Results of each command run in a batch mode, in the order they were
+     * sent. With {@link #MODE_BATCH_FAIL_FAST} the array stops at the first
+     * failed command. Safe to call from {@link #onPostExecute}.
+     *
+     * @return The per command results or null if not run in a batch mode
+     */
+    protected CommandResult[] getResults() {
+        return mResults;
+    }
+
+    /**
+     * @return If every command in the batch ran and succeeded
+     */
+    protected boolean allSucceeded() {
+        if (mResults == null || mResults.length != mCommandCount) {
+            return false;
+        }
+        for (CommandResult r : mResults) {
+            if (!r.success()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * <p>Runs on the UI thread after {@link #doInBackground}. The
      * specified result is the value returned by {@link #doInBackground}.</p>
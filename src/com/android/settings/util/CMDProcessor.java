@@ -29,6 +29,19 @@ public final class CMDProcessor {
         return proc.getResult();
     }
 
+    /* Run a system command, streaming its output to a listener */
+    public static ChildProcess startSysCmd(String[] cmdarray, String childStdin,
+            ChildProcess.OutputListener listener, int maxOutputChars) {
+        return new ChildProcess(cmdarray, childStdin, listener, maxOutputChars);
+    }
+
+    public static CommandResult runSysCmd(String[] cmdarray, String childStdin,
+            ChildProcess.OutputListener listener, int maxOutputChars) {
+        ChildProcess proc = startSysCmd(cmdarray, childStdin, listener, maxOutputChars);
+        proc.waitFinished();
+        return proc.getResult();
+    }
+
     public static ChildProcess startShellCommand(String cmd) {
         String[] cmdarray = new String[3];
         cmdarray[0] = "sh";
@@ -43,6 +56,15 @@ public final class CMDProcessor {
         return proc.getResult();
     }
 
+    /**
+     * Run a shell command, killing it if it runs longer than timeoutMs
+     */
+    public static CommandResult runShellCommand(String cmd, long timeoutMs) {
+        ChildProcess proc = startShellCommand(cmd);
+        proc.waitFinished(timeoutMs);
+        return proc.getResult();
+    }
+
     public static ChildProcess startSuCommand(String cmd) {
         String[] cmdarray = new String[3];
         cmdarray[0] = "su";
@@ -57,6 +79,30 @@ public final class CMDProcessor {
         return proc.getResult();
     }
 
+    /**
+     * Run a root command, killing it (and its children) if it runs
+     * longer than timeoutMs
+     */
+    public static CommandResult runSuCommand(String cmd, long timeoutMs) {
+        ChildProcess proc = startSuCommand(cmd);
+        proc.waitFinished(timeoutMs);
+        return proc.getResult();
+    }
+
+    /**
+     * Run a root command whose output may be large (logcat, big proc files).
+     * Output goes to the listener as it arrives and only the last
+     * maxOutputChars chars of each stream are kept in the result.
+     */
+    public static CommandResult runSuCommand(String cmd,
+            ChildProcess.OutputListener listener, int maxOutputChars) {
+        String[] cmdarray = new String[3];
+        cmdarray[0] = "su";
+        cmdarray[1] = "-c";
+        cmdarray[2] = cmd;
+        return runSysCmd(cmdarray, null, listener, maxOutputChars);
+    }
+
     public static boolean canSU() {
         CommandResult r = runShellCommand("id");
         StringBuilder out = new StringBuilder(0);
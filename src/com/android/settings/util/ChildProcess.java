@@ -6,33 +6,91 @@ import android.util.Log;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 
 import static java.lang.System.nanoTime;
 
-public class ChildProcess {
+public class ChildProcess implements ProcessWatchdog.Watchable {
     private String TAG = getClass().getSimpleName();
 
     private static final int PIPE_SIZE = 1024;
 
+    // how long to wait for output readers once the child has been killed
+    private static final long KILLED_JOIN_MS = 1000;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Receives child output as it is read, on the reader thread.
+     *
+     * Chunks are handed over in a buffer that is reused for the next read,
+     * so copy anything that needs to be kept.
+     */
+    public interface OutputListener {
+        /**
+         * @param buf decoded chars, only valid for the duration of the call
+         * @param len number of valid chars in buf
+         * @param isStderr true if the chunk came from stderr
+         */
+        void onChunk(char[] buf, int len, boolean isStderr);
+
+        /**
+         * @param line a complete line without its line terminator
+         * @param isStderr true if the line came from stderr
+         */
+        void onLine(String line, boolean isStderr);
+    }
+
     private class ChildReader extends Thread {
         InputStream mStream;
-        StringBuffer mBuffer;
-        ChildReader(InputStream is, StringBuffer buf) {
+        OutputBuffer mBuffer;
+        OutputListener mListener;
+        boolean mIsStderr;
+        StringBuilder mLine;
+        ChildReader(InputStream is, OutputBuffer buf, OutputListener listener, boolean isStderr) {
             mStream = is;
             mBuffer = buf;
+            mListener = listener;
+            setDaemon(true);
+            mIsStderr = isStderr;
+            if (listener != null) {
+                mLine = new StringBuilder();
+            }
         }
         public void run() {
-            byte[] buf = new byte[PIPE_SIZE];
+            byte[] bytes = new byte[PIPE_SIZE];
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            // utf-8 never decodes to more chars than bytes
+            CharBuffer out = CharBuffer.allocate(PIPE_SIZE);
+            CharsetDecoder decoder = CHARSET.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
             try {
                 int len;
-                while ((len = mStream.read(buf)) != -1) {
-                    String s = new String(buf, 0, len);
-                    mBuffer.append(s);
+                while ((len = mStream.read(bytes, in.position(), in.remaining())) != -1) {
+                    in.position(in.position() + len);
+                    in.flip();
+                    // a multi-byte char split across reads stays in the buffer
+                    decoder.decode(in, out, false);
+                    in.compact();
+                    deliver(out);
                 }
+                in.flip();
+                decoder.decode(in, out, true);
+                decoder.flush(out);
+                deliver(out);
             }
             catch (IOException e) {
                 // Ignore
             }
+            if (mLine != null && mLine.length() > 0) {
+                mListener.onLine(mLine.toString(), mIsStderr);
+                mLine.setLength(0);
+            }
             try {
                 mStream.close();
             }
@@ -40,6 +98,31 @@ public class ChildProcess {
                 // Ignore
             }
         }
+        private void deliver(CharBuffer out) {
+            out.flip();
+            int len = out.limit();
+            if (len > 0) {
+                char[] chars = out.array();
+                mBuffer.append(chars, 0, len);
+                if (mListener != null) {
+                    mListener.onChunk(chars, len, mIsStderr);
+                    splitLines(chars, len);
+                }
+            }
+            out.clear();
+        }
+        private void splitLines(char[] chars, int len) {
+            int start = 0;
+            for (int i = 0; i < len; i++) {
+                if (chars[i] == '\n') {
+                    mLine.append(chars, start, i - start);
+                    mListener.onLine(mLine.toString(), mIsStderr);
+                    mLine.setLength(0);
+                    start = i + 1;
+                }
+            }
+            mLine.append(chars, start, len - start);
+        }
     }
     private class ChildWriter extends Thread {
         OutputStream mStream;
@@ -50,7 +133,7 @@ public class ChildProcess {
         }
         public void run() {
             int off = 0;
-            byte[] buf = mBuffer.getBytes();
+            byte[] buf = mBuffer.getBytes(CHARSET);
             try {
                 while (off < buf.length) {
                     int len = Math.min(PIPE_SIZE, buf.length - off);
@@ -70,29 +153,46 @@ public class ChildProcess {
         }
     }
 
+    private final String mCommand;
     private long mStartTime;
-    private Process mChildProc;
+    private volatile Process mChildProc;
     private ChildWriter mChildStdinWriter;
     private ChildReader mChildStdoutReader;
     private ChildReader mChildStderrReader;
-    private StringBuffer mChildStdout;
-    private StringBuffer mChildStderr;
+    private OutputBuffer mChildStdout;
+    private OutputBuffer mChildStderr;
     private int mExitValue;
     private long mEndTime;
+    private volatile boolean mFinished;
+    private volatile boolean mKilled;
+    private volatile boolean mTimedOut;
 
     public ChildProcess(String[] cmdarray, String childStdin) {
+        this(cmdarray, childStdin, null, OutputBuffer.UNBOUNDED);
+    }
+
+    /**
+     * @param listener receives output as it arrives, may be null
+     * @param maxOutputChars how many trailing chars of each stream to keep
+     *        for {@link #getResult}; -1 keeps everything, 0 keeps nothing
+     */
+    public ChildProcess(String[] cmdarray, String childStdin,
+            OutputListener listener, int maxOutputChars) {
+        mCommand = describeCommand(cmdarray, childStdin);
         mStartTime = nanoTime();
+        mChildStdout = new OutputBuffer(maxOutputChars);
+        mChildStderr = new OutputBuffer(maxOutputChars);
         try {
             mChildProc = Runtime.getRuntime().exec(cmdarray);
             if (childStdin != null) {
                 mChildStdinWriter = new ChildWriter(mChildProc.getOutputStream(), childStdin);
                 mChildStdinWriter.start();
             }
-            mChildStdout = new StringBuffer();
-            mChildStdoutReader = new ChildReader(mChildProc.getInputStream(), mChildStdout);
+            mChildStdoutReader = new ChildReader(mChildProc.getInputStream(),
+                    mChildStdout, listener, false);
             mChildStdoutReader.start();
-            mChildStderr = new StringBuffer();
-            mChildStderrReader = new ChildReader(mChildProc.getErrorStream(), mChildStderr);
+            mChildStderrReader = new ChildReader(mChildProc.getErrorStream(),
+                    mChildStderr, listener, true);
             mChildStderrReader.start();
         }
         catch (IOException e) {
@@ -100,46 +200,127 @@ public class ChildProcess {
         }
     }
 
-    public boolean isFinished() {
-        boolean finished = true;
-        if (mChildProc != null) {
-            try {
-                mChildProc.exitValue();
-            }
-            catch (IllegalStateException e) {
-                finished = false;
+    /**
+     * @return The command line, followed by any commands fed on stdin
+     */
+    private static String describeCommand(String[] cmdarray, String childStdin) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < cmdarray.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
             }
+            sb.append(cmdarray[i]);
+        }
+        if (childStdin != null) {
+            sb.append(" <<< ").append(childStdin.trim());
+        }
+        return sb.toString();
+    }
+
+    public boolean isFinished() {
+        if (mFinished || mChildProc == null) {
+            return true;
+        }
+        try {
+            mChildProc.exitValue();
+            return true;
+        }
+        catch (IllegalThreadStateException e) {
+            return false;
         }
-        return finished;
     }
 
+    /**
+     * @return If the child was killed because its deadline passed
+     */
+    public boolean isTimedOut() {
+        return mTimedOut;
+    }
+
+    /**
+     * @return If the child was killed by a timeout or {@link #cancel}
+     */
+    public boolean isKilled() {
+        return mKilled;
+    }
+
+    /**
+     * Wait for the child to exit. If the waiting thread is interrupted
+     * (e.g. AsyncTask.cancel(true)) the child is killed rather than left
+     * running, and the interrupt is preserved for the caller.
+     */
     public int waitFinished() {
+        boolean interrupted = false;
         while (mChildProc != null) {
             try {
                 mExitValue = mChildProc.waitFor();
                 mEndTime = nanoTime();
                 mChildProc = null;
-                mChildStderrReader.join();
+                // an orphaned grandchild can hold the pipes open after a
+                // kill, so don't wait on the readers forever in that case
+                long joinMs = mKilled ? KILLED_JOIN_MS : 0;
+                mChildStderrReader.join(joinMs);
                 mChildStderrReader = null;
-                mChildStdoutReader.join();
+                mChildStdoutReader.join(joinMs);
                 mChildStdoutReader = null;
                 if (mChildStdinWriter != null) {
-                    mChildStdinWriter.join();
+                    mChildStdinWriter.join(joinMs);
                     mChildStdinWriter = null;
                 }
             }
             catch (InterruptedException e) {
-                // Ignore
+                interrupted = true;
+                cancel();
             }
         }
+        ProcessWatchdog.unwatch(this);
+        mFinished = true;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
         return mExitValue;
     }
 
+    /**
+     * Wait for the child to exit, killing it and everything it started
+     * if it is still running after timeoutMs
+     *
+     * @return The exit value, which is not 0 if the child was killed
+     */
+    public int waitFinished(long timeoutMs) {
+        if (mChildProc != null) {
+            ProcessWatchdog.watch(this, timeoutMs);
+        }
+        return waitFinished();
+    }
+
+    /**
+     * Kill the child and everything it started. Safe to call from any thread.
+     */
+    public void cancel() {
+        Process proc = mChildProc;
+        if (proc == null || mKilled || isFinished()) {
+            return;
+        }
+        mKilled = true;
+        ProcessWatchdog.unwatch(this);
+        Log.w(TAG, "Killing child process");
+        ProcessWatchdog.killProcessTree(proc);
+    }
+
+    @Override
+    public void onDeadlineExpired() {
+        mTimedOut = true;
+        Log.w(TAG, "Child process timed out");
+        cancel();
+    }
+
     public CommandResult getResult() {
         if (!isFinished()) {
             throw new IllegalThreadStateException("Child process running");
         }
         return new CommandResult(
+                mCommand,
                 mStartTime,
                 mExitValue,
                 mChildStdout.toString(),
@@ -1,17 +1,13 @@
 package com.android.settings.util;
 
-import android.os.Environment;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
 
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-
 @SuppressWarnings("AccessOfSystemProperties")
 public class CommandResult implements Parcelable {
     private final String TAG = getClass().getSimpleName();
+    private final String mCommand;
     private final long mStartTime;
     private final int mExitValue;
     private final String mStdout;
@@ -23,6 +19,19 @@ public class CommandResult implements Parcelable {
                          String stdout,
                          String stderr,
                          long endTime) {
+        this(null, startTime, exitValue, stdout, stderr, endTime);
+    }
+
+    /**
+     * @param command what was run, may be null
+     */
+    public CommandResult(String command,
+                         long startTime,
+                         int exitValue,
+                         String stdout,
+                         String stderr,
+                         long endTime) {
+        mCommand = command;
         mStartTime = startTime;
         mExitValue = exitValue;
         mStdout = stdout;
@@ -38,7 +47,8 @@ public class CommandResult implements Parcelable {
     // loading constructor
     @SuppressWarnings("CastToConcreteClass")
     public CommandResult(Parcel inParcel) {
-        this(inParcel.readLong(),
+        this(inParcel.readString(),
+                inParcel.readLong(),
                 inParcel.readInt(),
                 inParcel.readString(),
                 inParcel.readString(),
@@ -54,11 +64,11 @@ public class CommandResult implements Parcelable {
     }
 
     public String getStderr() {
-        return new String(mStderr);
+        return mStderr;
     }
 
     public String getStdout() {
-        return new String(mStdout);
+        return mStdout;
     }
 
     public Integer getExitValue() {
@@ -69,6 +79,13 @@ public class CommandResult implements Parcelable {
         return mStartTime;
     }
 
+    /**
+     * @return What was run, or null if not known
+     */
+    public String getCommand() {
+        return mCommand;
+    }
+
     @SuppressWarnings("UnnecessaryExplicitNumericCast")
     private void checkForErrors() {
         if (mExitValue != 0
@@ -80,37 +97,16 @@ public class CommandResult implements Parcelable {
                     mStderr.contains("chmod: /sys/devices/system/cpu/cpu")
                             // if core is off applying cpu freqs fails
                             || mStderr.contains(": can't create /sys/devices/system/cpu/cpu");
-            String lineEnding = System.getProperty("line.separator");
-            FileWriter errorWriter = null;
-            try {
-                File errorLogFile = new File(
-                        Environment.getExternalStorageDirectory()
-                        + "/aokp/error.txt");
-                if (!errorLogFile.exists()) {
-                    errorLogFile.createNewFile();
-                }
-                errorWriter = new FileWriter(errorLogFile, true);
-                // only log the cpu state as offline while writing
-                if (skipOfflineCpu) {
-                    errorWriter.write(lineEnding);
-                    errorWriter.write("Attempted to write to an offline cpu core (ignore me).");
-                } else {
-                    errorWriter.write(TAG + " shell error detected!");
-                    errorWriter.write(lineEnding);
-                    errorWriter.write("CommandResult {" + this.toString() + '}');
-                    errorWriter.write(lineEnding);
-                }
-                errorWriter.write(lineEnding);
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to write command result to error file", e);
-            } finally {
-                if (errorWriter != null) {
-                    try {
-                        errorWriter.close();
-                    } catch (IOException ignored) {
-                        // let it go
-                    }
-                }
+            if (skipOfflineCpu) {
+                // only log the cpu state as offline
+                ErrorJournal.record("offline_cpu",
+                        "Attempted to write to an offline cpu core (ignore me).");
+            } else {
+                String lineEnding = System.getProperty("line.separator");
+                // repeats of the same failure of the same command collapse
+                ErrorJournal.record(mCommand + ":" + mExitValue + ":" + mStderr,
+                        TAG + " shell error detected!" + lineEnding
+                        + "CommandResult {" + this.toString() + '}');
             }
         }
     }
@@ -123,6 +119,7 @@ public class CommandResult implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel parcel, int i) {
+        parcel.writeString(mCommand);
         parcel.writeLong(mStartTime);
         parcel.writeInt(mExitValue);
         parcel.writeString(mStdout);
@@ -133,6 +130,7 @@ public class CommandResult implements Parcelable {
     @Override
     public String toString() {
         return "CommandResult{" +
+                "command='" + mCommand + "'" +
                 ", mStartTime=" + mStartTime +
                 ", mExitValue=" + mExitValue +
                 ", stdout='" + mStdout + "'" +
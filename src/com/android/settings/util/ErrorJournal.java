@@ -0,0 +1,260 @@
+package com.android.settings.util;
+
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Background journal of failed shell commands.
+ *
+ * Callers only append to an in-memory queue; a single writer thread
+ * drains it in batches to /sdcard/aokp/error.txt, rotating the file once
+ * it grows past {@link #MAX_FILE_SIZE}. The same error repeated within
+ * {@link #DEDUP_WINDOW_MS} is counted rather than written again, and the
+ * last {@link #MAX_RECENT} distinct errors can be read back with
+ * {@link #getRecent}.
+ */
+public final class ErrorJournal {
+    private static final String TAG = "ErrorJournal";
+
+    private static final String LOG_DIR = "/aokp";
+    private static final String LOG_NAME = "error.txt";
+
+    // rotate to error.txt.1 past this size
+    private static final long MAX_FILE_SIZE = 256 * 1024;
+    // drop the oldest pending entries past this many
+    private static final int MAX_PENDING = 256;
+    // how many entries getRecent() can return
+    private static final int MAX_RECENT = 50;
+    // identical errors inside this window are only counted
+    private static final long DEDUP_WINDOW_MS = 10000;
+    // let a burst collect before writing it out
+    private static final long BATCH_DELAY_MS = 500;
+
+    private static final Object sLock = new Object();
+    private static final ArrayDeque<Entry> sPending = new ArrayDeque<Entry>();
+    private static final ArrayDeque<Entry> sRecent = new ArrayDeque<Entry>();
+    private static final HashMap<String, Entry> sLastByKey = new HashMap<String, Entry>();
+    private static Thread sWriter;
+    private static int sDropped;
+
+    /**
+     * One journaled error, possibly standing for several identical ones
+     */
+    public static class Entry {
+        public final long time;
+        public final String message;
+        int mRepeats;
+        // repeats already accounted for in the file
+        int mWrittenRepeats;
+        boolean mWritten;
+        // waiting in sPending
+        boolean mQueued;
+
+        Entry(long time, String message) {
+            this.time = time;
+            this.message = message;
+        }
+
+        /**
+         * @return How many more times this error happened after the first
+         */
+        public int getRepeats() {
+            synchronized (sLock) {
+                return mRepeats;
+            }
+        }
+    }
+
+    private ErrorJournal() {
+        // Cannot instantiate this class
+        throw new AssertionError();
+    }
+
+    /**
+     * Queue an error for the journal; never blocks on storage
+     *
+     * @param key identifies repeats of the same error
+     * @param message the text to write
+     */
+    public static void record(String key, String message) {
+        long now = System.currentTimeMillis();
+        synchronized (sLock) {
+            Entry last = sLastByKey.get(key);
+            if (last != null && now - last.time < DEDUP_WINDOW_MS) {
+                last.mRepeats++;
+                if (last.mWritten && !last.mQueued) {
+                    // already in the file, queue it again for a repeat line
+                    enqueueLocked(last);
+                }
+                return;
+            }
+            Entry entry = new Entry(now, message);
+            sLastByKey.put(key, entry);
+            pruneKeysLocked(now);
+
+            enqueueLocked(entry);
+            if (sRecent.size() >= MAX_RECENT) {
+                sRecent.removeFirst();
+            }
+            sRecent.addLast(entry);
+
+            if (sWriter == null) {
+                sWriter = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeLoop();
+                    }
+                }, TAG);
+                sWriter.setDaemon(true);
+                sWriter.setPriority(Thread.MIN_PRIORITY);
+                sWriter.start();
+            }
+            sLock.notifyAll();
+        }
+    }
+
+    /**
+     * @param max the most entries to return
+     * @return The most recent distinct errors, oldest first
+     */
+    public static ArrayList<Entry> getRecent(int max) {
+        synchronized (sLock) {
+            int skip = Math.max(0, sRecent.size() - max);
+            ArrayList<Entry> out = new ArrayList<Entry>(sRecent.size() - skip);
+            for (Entry entry : sRecent) {
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                out.add(entry);
+            }
+            return out;
+        }
+    }
+
+    /**
+     * @return The number of errors that were never written because the
+     *         queue was full
+     */
+    public static int getDroppedCount() {
+        synchronized (sLock) {
+            return sDropped;
+        }
+    }
+
+    private static void enqueueLocked(Entry entry) {
+        if (sPending.size() >= MAX_PENDING) {
+            sPending.removeFirst().mQueued = false;
+            sDropped++;
+        }
+        sPending.addLast(entry);
+        entry.mQueued = true;
+    }
+
+    private static void pruneKeysLocked(long now) {
+        if (sLastByKey.size() < MAX_RECENT) {
+            return;
+        }
+        Iterator<Map.Entry<String, Entry>> it = sLastByKey.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue().time >= DEDUP_WINDOW_MS) {
+                it.remove();
+            }
+        }
+    }
+
+    private static void writeLoop() {
+        ArrayList<String> batch = new ArrayList<String>();
+        while (true) {
+            synchronized (sLock) {
+                while (sPending.isEmpty()) {
+                    try {
+                        sLock.wait();
+                    } catch (InterruptedException ignored) {
+                        // keep going
+                    }
+                }
+            }
+            try {
+                // repeats of the first entry are still being counted
+                Thread.sleep(BATCH_DELAY_MS);
+            } catch (InterruptedException ignored) {
+                // write what we have
+            }
+            synchronized (sLock) {
+                for (Entry entry : sPending) {
+                    batch.add(formatLocked(entry));
+                }
+                sPending.clear();
+            }
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Text for a queued entry: the error with its repeats so far, or just
+     * the repeats counted since it was written.
+     */
+    private static String formatLocked(Entry entry) {
+        String lineEnding = System.getProperty("line.separator");
+        int repeats = entry.mRepeats - entry.mWrittenRepeats;
+        String text;
+        if (!entry.mWritten) {
+            text = entry.message;
+            if (repeats > 0) {
+                text += lineEnding + "(repeated " + repeats + " more times)";
+            }
+        } else {
+            int end = entry.message.indexOf('\n');
+            text = "(repeated " + repeats + " more times: "
+                    + (end >= 0 ? entry.message.substring(0, end) : entry.message) + ")";
+        }
+        entry.mWritten = true;
+        entry.mWrittenRepeats = entry.mRepeats;
+        entry.mQueued = false;
+        return text;
+    }
+
+    private static void writeBatch(ArrayList<String> batch) {
+        String lineEnding = System.getProperty("line.separator");
+        File dir = new File(Environment.getExternalStorageDirectory() + LOG_DIR);
+        File logFile = new File(dir, LOG_NAME);
+        if (logFile.length() > MAX_FILE_SIZE) {
+            File old = new File(dir, LOG_NAME + ".1");
+            old.delete();
+            logFile.renameTo(old);
+        }
+        FileWriter errorWriter = null;
+        try {
+            if (!logFile.exists()) {
+                logFile.createNewFile();
+            }
+            errorWriter = new FileWriter(logFile, true);
+            for (String text : batch) {
+                errorWriter.write(text);
+                errorWriter.write(lineEnding);
+                errorWriter.write(lineEnding);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write command results to error file", e);
+        } finally {
+            if (errorWriter != null) {
+                try {
+                    errorWriter.close();
+                } catch (IOException ignored) {
+                    // let it go
+                }
+            }
+        }
+    }
+}
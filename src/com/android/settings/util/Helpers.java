@@ -12,7 +12,6 @@ import android.widget.Toast;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -30,6 +29,9 @@ public class Helpers {
     // avoids hardcoding the tag
     private static final String TAG = Thread.currentThread().getStackTrace()[1].getClassName();
 
+    // a blocked remount must not pin the calling thread forever
+    private static final long MOUNT_TIMEOUT_MS = 20000;
+
     public Helpers() {
         // dummy constructor
     }
@@ -106,26 +108,14 @@ public class Helpers {
     }
 
     public static String[] getMounts(CharSequence path) {
-        BufferedReader bufferedReader = null;
-        try {
-            bufferedReader = new BufferedReader(new FileReader("/proc/mounts"), 256);
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                if (line.contains(path)) {
-                    return line.split(" ");
-                }
-            }
-        } catch (FileNotFoundException ignored) {
-            Log.d(TAG, "/proc/mounts does not exist");
-        } catch (IOException ignored) {
+        String[] lines = SysfsCache.readLines("/proc/mounts");
+        if (lines == null) {
             Log.d(TAG, "Error reading /proc/mounts");
-        } finally {
-            if (bufferedReader != null) {
-                try {
-                    bufferedReader.close();
-                } catch (IOException ignored) {
-                    // ignored
-                }
+            return null;
+        }
+        for (String line : lines) {
+            if (line.contains(path)) {
+                return line.split(" ");
             }
         }
         return null;
@@ -138,26 +128,33 @@ public class Helpers {
             String path = mounts[1];
             String point = mounts[2];
             String preferredMountCmd = new String("mount -o " + mount + ",remount -t " + point + ' ' + device + ' ' + path);
-            if (CMDProcessor.runSuCommand(preferredMountCmd).success()) {
+            if (ShellSessionPool.runSuCommand(preferredMountCmd, MOUNT_TIMEOUT_MS).success()) {
+                SysfsCache.invalidate("/proc/mounts");
                 return true;
             }
         }
         String fallbackMountCmd = new String("busybox mount -o remount," + mount + " /system");
-        return CMDProcessor.runSuCommand(fallbackMountCmd).success();
+        boolean mounted = ShellSessionPool.runSuCommand(fallbackMountCmd, MOUNT_TIMEOUT_MS).success();
+        SysfsCache.invalidate("/proc/mounts");
+        return mounted;
     }
 
     public static String readOneLine(String fname) {
+        return SysfsCache.readOneLine(fname);
+    }
+
+    /**
+     * Read the first line of a file without falling back to a shell
+     *
+     * @return The line or null if the file could not be read
+     */
+    public static String readOneLineQuietly(String fname) {
         BufferedReader br = null;
-        String line = null;
         try {
-            br = new BufferedReader(new FileReader(fname), 1024);
-            line = br.readLine();
-        } catch (FileNotFoundException ignored) {
-            Log.d(TAG, "File was not found! trying via shell...");
-            return readFileViaShell(fname, true);
-        } catch (IOException e) {
-            Log.d(TAG, "IOException while reading system file", e);
-            return readFileViaShell(fname, true);
+            br = new BufferedReader(new FileReader(fname), 512);
+            return br.readLine();
+        } catch (IOException ignored) {
+            return null;
         } finally {
             if (br != null) {
                 try {
@@ -167,12 +164,11 @@ public class Helpers {
                 }
             }
         }
-        return line;
     }
 
     public static String readFileViaShell(String filePath, boolean useSu) {
         String command = new String("cat " + filePath);
-        return useSu ? CMDProcessor.runSuCommand(command).getStdout()
+        return useSu ? ShellSessionPool.runSuCommand(command).getStdout()
                 : CMDProcessor.runShellCommand(command).getStdout();
     }
 
@@ -186,6 +182,7 @@ public class Helpers {
             Log.e(TAG, Error, e);
             return false;
         } finally {
+            SysfsCache.invalidate(filename);
             if (fileWriter != null) {
                 try {
                     fileWriter.close();
@@ -212,11 +209,7 @@ public class Helpers {
     }
 
     private static String[] readStringArray(String fname) {
-        String line = readOneLine(fname);
-        if (line != null) {
-            return line.split(" ");
-        }
-        return null;
+        return SysfsCache.readWords(fname);
     }
 
     public static String getIOScheduler() {
@@ -0,0 +1,85 @@
+package com.android.settings.util;
+
+/**
+ * Collects decoded child process output.
+ *
+ * An unbounded buffer keeps everything; a bounded one keeps only the last
+ * {@code capacity} chars in a ring so commands like logcat or cat of big
+ * proc files can't grow the heap without limit. Only the reader thread
+ * appends; the lock is uncontended except when a killed child's reader
+ * was abandoned and is still running.
+ */
+class OutputBuffer {
+    /** Keep all output */
+    public static final int UNBOUNDED = -1;
+    /** Keep no output, for callers that only want the stream callbacks */
+    public static final int DISCARD = 0;
+
+    private final int mCapacity;
+    private StringBuilder mBuilder;
+    private char[] mRing;
+    private int mStart;
+    private int mSize;
+    private long mDropped;
+
+    OutputBuffer(int capacity) {
+        mCapacity = capacity;
+        if (capacity == UNBOUNDED) {
+            mBuilder = new StringBuilder();
+        } else if (capacity > 0) {
+            mRing = new char[capacity];
+        }
+    }
+
+    synchronized void append(char[] buf, int off, int len) {
+        if (mBuilder != null) {
+            mBuilder.append(buf, off, len);
+            return;
+        }
+        if (mRing == null) {
+            mDropped += len;
+            return;
+        }
+        // only the tail of an oversized chunk can survive
+        if (len > mCapacity) {
+            mDropped += len - mCapacity;
+            off += len - mCapacity;
+            len = mCapacity;
+        }
+        int overflow = mSize + len - mCapacity;
+        if (overflow > 0) {
+            mStart = (mStart + overflow) % mCapacity;
+            mSize -= overflow;
+            mDropped += overflow;
+        }
+        int end = (mStart + mSize) % mCapacity;
+        int first = Math.min(len, mCapacity - end);
+        System.arraycopy(buf, off, mRing, end, first);
+        if (first < len) {
+            System.arraycopy(buf, off + first, mRing, 0, len - first);
+        }
+        mSize += len;
+    }
+
+    /**
+     * @return The number of chars that did not fit and were thrown away
+     */
+    synchronized long getDropped() {
+        return mDropped;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (mBuilder != null) {
+            return mBuilder.toString();
+        }
+        if (mRing == null || mSize == 0) {
+            return "";
+        }
+        int first = Math.min(mSize, mCapacity - mStart);
+        StringBuilder out = new StringBuilder(mSize);
+        out.append(mRing, mStart, first);
+        out.append(mRing, 0, mSize - first);
+        return out.toString();
+    }
+}
@@ -0,0 +1,250 @@
+package com.android.settings.util;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * One shared thread that kills child shells which run past their deadline.
+ *
+ * A hung su prompt or blocked mount would otherwise pin the waiting
+ * (usually AsyncTask) thread forever. Anything that registers gets
+ * {@link Watchable#onDeadlineExpired} called on the watchdog thread once
+ * its deadline passes, unless it unregisters first.
+ */
+public final class ProcessWatchdog {
+    private static final String TAG = "ProcessWatchdog";
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    // Guards the queue and both counters, so a target is either unwatched
+    // or counted as timed out, never both.
+    private static final Object sLock = new Object();
+    private static final PriorityQueue<Entry> sQueue = new PriorityQueue<Entry>();
+    private static Thread sThread;
+    private static int sTimeouts;
+    private static int sKills;
+
+    public interface Watchable {
+        /**
+         * Called on the watchdog thread when the deadline has passed
+         */
+        void onDeadlineExpired();
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        final Watchable mTarget;
+        final long mDeadline;
+
+        Entry(Watchable target, long deadline) {
+            mTarget = target;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return mDeadline < other.mDeadline ? -1 : (mDeadline == other.mDeadline ? 0 : 1);
+        }
+    }
+
+    private ProcessWatchdog() {
+        // Cannot instantiate this class
+        throw new AssertionError();
+    }
+
+    /**
+     * Start watching a target
+     *
+     * @param timeoutMs time from now after which the target is expired
+     */
+    public static void watch(Watchable target, long timeoutMs) {
+        Entry entry = new Entry(target, nanoTime() + timeoutMs * NANOS_PER_MILLI);
+        synchronized (sLock) {
+            sQueue.add(entry);
+            if (sThread == null) {
+                sThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        loop();
+                    }
+                }, TAG);
+                sThread.setDaemon(true);
+                sThread.start();
+            }
+            sLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stop watching a target, normally because it finished in time
+     */
+    public static void unwatch(Watchable target) {
+        synchronized (sLock) {
+            for (Entry entry : sQueue) {
+                if (entry.mTarget == target) {
+                    sQueue.remove(entry);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of commands that ran past their deadline
+     */
+    public static int getTimeoutCount() {
+        synchronized (sLock) {
+            return sTimeouts;
+        }
+    }
+
+    /**
+     * @return The number of processes killed by timeouts or cancellation
+     */
+    public static int getKillCount() {
+        synchronized (sLock) {
+            return sKills;
+        }
+    }
+
+    static void countTimeout() {
+        synchronized (sLock) {
+            sTimeouts++;
+        }
+    }
+
+    private static void countKills(int kills) {
+        synchronized (sLock) {
+            sKills += kills;
+        }
+    }
+
+    private static void loop() {
+        while (true) {
+            Entry expired = null;
+            synchronized (sLock) {
+                Entry head = sQueue.peek();
+                if (head == null) {
+                    try {
+                        sLock.wait();
+                    } catch (InterruptedException ignored) {
+                        // keep watching
+                    }
+                    continue;
+                }
+                long waitNanos = head.mDeadline - nanoTime();
+                if (waitNanos > 0) {
+                    try {
+                        sLock.wait(waitNanos / NANOS_PER_MILLI + 1);
+                    } catch (InterruptedException ignored) {
+                        // keep watching
+                    }
+                    continue;
+                }
+                expired = sQueue.poll();
+                sTimeouts++;
+            }
+            try {
+                expired.mTarget.onDeadlineExpired();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to expire " + expired.mTarget, e);
+            }
+        }
+    }
+
+    /**
+     * Kill a process and every process it started.
+     *
+     * Children of su run as root so they can't be signalled from here;
+     * those are killed through a separate, unwaited su call.
+     */
+    static void killProcessTree(Process proc) {
+        int pid = getPid(proc);
+        ArrayList<Integer> pids = new ArrayList<Integer>();
+        if (pid > 0) {
+            collectDescendants(pid, pids);
+        }
+        proc.destroy();
+        countKills(1);
+        if (!pids.isEmpty()) {
+            StringBuilder cmd = new StringBuilder("kill -9");
+            for (Integer child : pids) {
+                cmd.append(' ').append(child);
+            }
+            Log.w(TAG, "Killing stuck children: " + cmd);
+            CMDProcessor.startSuCommand(cmd.toString());
+            countKills(pids.size());
+        }
+    }
+
+    /**
+     * @return The pid of a child process, or -1 if the runtime hides it
+     */
+    private static int getPid(Process proc) {
+        try {
+            java.lang.reflect.Field field = proc.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return field.getInt(proc);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static void collectDescendants(int root, ArrayList<Integer> out) {
+        String[] entries = new File("/proc").list();
+        if (entries == null) {
+            return;
+        }
+        // snapshot the parent of every process once, then walk down from root
+        int[] pids = new int[entries.length];
+        int[] parents = new int[entries.length];
+        int count = 0;
+        for (String entry : entries) {
+            if (entry.length() == 0 || !Character.isDigit(entry.charAt(0))) {
+                continue;
+            }
+            int ppid = readParentPid(entry);
+            if (ppid > 0) {
+                pids[count] = Integer.parseInt(entry);
+                parents[count] = ppid;
+                count++;
+            }
+        }
+        ArrayList<Integer> pending = new ArrayList<Integer>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            int parent = pending.remove(pending.size() - 1);
+            for (int i = 0; i < count; i++) {
+                if (parents[i] == parent) {
+                    out.add(pids[i]);
+                    pending.add(pids[i]);
+                }
+            }
+        }
+    }
+
+    private static int readParentPid(String pid) {
+        String stat = Helpers.readOneLineQuietly("/proc/" + pid + "/stat");
+        if (stat == null) {
+            return -1;
+        }
+        // the command name may contain spaces, fields restart after ')'
+        int end = stat.lastIndexOf(')');
+        if (end < 0) {
+            return -1;
+        }
+        String[] fields = stat.substring(end + 2).split(" ");
+        if (fields.length < 2) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fields[1]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
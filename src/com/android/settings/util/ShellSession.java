@@ -0,0 +1,307 @@
+package com.android.settings.util;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * A long-lived shell process that runs many commands one after another.
+ *
+ * Each command is written to the shell's stdin followed by an echo of a
+ * unique marker (and the command's exit code) on both stdout and stderr,
+ * so the two long-lived readers know where one command's output ends and
+ * the next one begins. Commands on a single session are serialized; use
+ * {@link ShellSessionPool} to run commands from several threads.
+ */
+public class ShellSession {
+    private static final String TAG = "ShellSession";
+
+    private static final String CHARSET = "UTF-8";
+    // How long open() waits for the shell to answer, su may be showing
+    // a prompt nobody answers.
+    private static final long OPEN_TIMEOUT_MS = 15000;
+
+    private final String mShell;
+    private final String mMarker;
+    private final Object mLock = new Object();
+
+    private Process mProcess;
+    private OutputStream mStdin;
+    private SessionReader mStdoutReader;
+    private SessionReader mStderrReader;
+    private PendingCommand mPending;
+    private volatile boolean mDead;
+    private int mCommandCount;
+
+    /**
+     * Holds the output of the command currently running on the session
+     */
+    private static class PendingCommand {
+        final StringBuilder mStdout = new StringBuilder();
+        final StringBuilder mStderr = new StringBuilder();
+        int mExitValue = -1;
+        boolean mStdoutDone;
+        boolean mStderrDone;
+
+        boolean isDone() {
+            return mStdoutDone && mStderrDone;
+        }
+    }
+
+    private class SessionReader extends Thread {
+        private final InputStream mStream;
+        private final boolean mIsStdout;
+
+        SessionReader(InputStream is, boolean isStdout) {
+            super(TAG + (isStdout ? "-stdout" : "-stderr"));
+            mStream = is;
+            mIsStdout = isStdout;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(mStream, CHARSET));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    onLine(line, mIsStdout);
+                }
+            } catch (IOException e) {
+                // stream closed underneath us, handled below
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException ignored) {
+                        // let it go
+                    }
+                }
+                onEndOfStream();
+            }
+        }
+    }
+
+    /**
+     * @param shell the shell binary to start, "su" or "sh"
+     */
+    public ShellSession(String shell) {
+        mShell = shell;
+        mMarker = "__SESSION_" + UUID.randomUUID().toString().replace("-", "") + "__";
+    }
+
+    /**
+     * Start the shell process
+     *
+     * @return If the shell was started and is ready for commands
+     */
+    public boolean open() {
+        synchronized (mLock) {
+            if (mProcess != null) {
+                return !mDead;
+            }
+            try {
+                mProcess = Runtime.getRuntime().exec(mShell);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to start " + mShell, e);
+                mDead = true;
+                return false;
+            }
+            mStdin = mProcess.getOutputStream();
+            mStdoutReader = new SessionReader(mProcess.getInputStream(), true);
+            mStderrReader = new SessionReader(mProcess.getErrorStream(), false);
+            mStdoutReader.start();
+            mStderrReader.start();
+        }
+        // a denied su prompt exits straight away, find out now
+        // rather than on the first real command; one left unanswered
+        // times out, which kills the shell and marks the session dead
+        CommandResult probe = run("echo ready", OPEN_TIMEOUT_MS);
+        return probe.success() && isAlive();
+    }
+
+    public boolean isAlive() {
+        return mProcess != null && !mDead;
+    }
+
+    public String getShell() {
+        return mShell;
+    }
+
+    /**
+     * @return The number of commands run since the session was opened
+     */
+    public int getCommandCount() {
+        synchronized (mLock) {
+            return mCommandCount;
+        }
+    }
+
+    /**
+     * Run a command on this session and block until it finishes.
+     *
+     * If the session has died (or dies while running the command) the
+     * returned result has an exit value of -1.
+     */
+    public CommandResult run(String cmd) {
+        return run(cmd, 0);
+    }
+
+    /**
+     * Run a command on this session, giving up after timeoutMs.
+     *
+     * A command that times out leaves the shell in an unknown state, so
+     * the whole session is killed and the result has an exit value of -1.
+     *
+     * @param timeoutMs how long to wait, or 0 to wait forever
+     */
+    public CommandResult run(String cmd, long timeoutMs) {
+        long startTime = nanoTime();
+        long deadline = timeoutMs > 0 ? startTime + timeoutMs * 1000000L : 0;
+        PendingCommand pending = new PendingCommand();
+        Process victim = null;
+        synchronized (mLock) {
+            if (!isAlive()) {
+                return new CommandResult(cmd, startTime, -1, "",
+                        mShell + " session is not running", nanoTime());
+            }
+            mPending = pending;
+            mCommandCount++;
+            StringBuilder script = new StringBuilder(cmd.length() + 2 * mMarker.length() + 32);
+            script.append(cmd).append('\n');
+            script.append("echo \"").append(mMarker).append(" $?\"\n");
+            script.append("echo \"").append(mMarker).append("\" >&2\n");
+            try {
+                mStdin.write(script.toString().getBytes(CHARSET));
+                mStdin.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write to " + mShell + " session", e);
+                markDeadLocked();
+            }
+            while (!pending.isDone()) {
+                try {
+                    if (deadline == 0) {
+                        mLock.wait();
+                        continue;
+                    }
+                    long remaining = deadline - nanoTime();
+                    if (remaining <= 0) {
+                        Log.w(TAG, "Command timed out on " + mShell + " session: " + cmd);
+                        ProcessWatchdog.countTimeout();
+                        victim = killLocked();
+                        break;
+                    }
+                    mLock.wait(remaining / 1000000L + 1);
+                } catch (InterruptedException e) {
+                    // the shell is now out of step with us, throw it away
+                    Log.w(TAG, "Interrupted while waiting for " + mShell + " session");
+                    victim = killLocked();
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            mPending = null;
+        }
+        if (victim != null) {
+            // scanning /proc and forking su can take a while, don't make
+            // everyone waiting on the session sit through it
+            ProcessWatchdog.killProcessTree(victim);
+        }
+        return new CommandResult(cmd, startTime,
+                pending.mExitValue,
+                pending.mStdout.toString(),
+                pending.mStderr.toString(),
+                nanoTime());
+    }
+
+    /**
+     * Ask the shell to exit and release the process
+     */
+    public void close() {
+        synchronized (mLock) {
+            if (mProcess == null) {
+                return;
+            }
+            if (!mDead) {
+                try {
+                    mStdin.write("exit\n".getBytes(CHARSET));
+                    mStdin.flush();
+                } catch (IOException ignored) {
+                    // already gone
+                }
+            }
+            markDeadLocked();
+            try {
+                mStdin.close();
+            } catch (IOException ignored) {
+                // let it go
+            }
+            mProcess.destroy();
+        }
+    }
+
+    /**
+     * Mark the session dead
+     *
+     * @return The process to kill once mLock is released, or null
+     */
+    private Process killLocked() {
+        markDeadLocked();
+        return mProcess;
+    }
+
+    private void onLine(String line, boolean isStdout) {
+        synchronized (mLock) {
+            PendingCommand pending = mPending;
+            if (pending == null) {
+                // output after a command was abandoned, nobody wants it
+                return;
+            }
+            StringBuilder out = isStdout ? pending.mStdout : pending.mStderr;
+            int markerPos = line.indexOf(mMarker);
+            if (markerPos < 0) {
+                out.append(line).append('\n');
+                return;
+            }
+            // output that did not end with a newline shares the marker's line
+            if (markerPos > 0) {
+                out.append(line, 0, markerPos);
+            }
+            if (isStdout) {
+                String code = line.substring(markerPos + mMarker.length()).trim();
+                try {
+                    pending.mExitValue = Integer.parseInt(code);
+                } catch (NumberFormatException e) {
+                    pending.mExitValue = -1;
+                }
+                pending.mStdoutDone = true;
+            } else {
+                pending.mStderrDone = true;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    private void onEndOfStream() {
+        synchronized (mLock) {
+            markDeadLocked();
+        }
+    }
+
+    private void markDeadLocked() {
+        mDead = true;
+        if (mPending != null) {
+            mPending.mStdoutDone = true;
+            mPending.mStderrDone = true;
+        }
+        mLock.notifyAll();
+    }
+}
@@ -0,0 +1,185 @@
+package com.android.settings.util;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * A small pool of long-lived root shells shared across the app.
+ *
+ * {@link CMDProcessor#runSuCommand} forks a new su process (and su daemon
+ * handshake) for every command, which dominates the cost of scripts that
+ * run many short commands. This pool keeps up to {@link #MAX_SESSIONS}
+ * {@link ShellSession}s open and hands commands to whichever is idle.
+ *
+ * If a root session cannot be opened the commands fall back to
+ * {@link CMDProcessor#runSuCommand} so callers see the same results.
+ */
+public final class ShellSessionPool {
+    private static final String TAG = "ShellSessionPool";
+
+    private static final int MAX_SESSIONS = 2;
+
+    private static final Object sLock = new Object();
+    private static final ArrayList<ShellSession> sIdle = new ArrayList<ShellSession>();
+    private static int sOpenSessions;
+    private static boolean sSuUnavailable;
+
+    private ShellSessionPool() {
+        // Cannot instantiate this class
+        throw new AssertionError();
+    }
+
+    /**
+     * Run a command as root on a pooled session
+     */
+    public static CommandResult runSuCommand(String cmd) {
+        ShellSession session = acquire();
+        if (session == null) {
+            return CMDProcessor.runSuCommand(cmd);
+        }
+        CommandResult result = session.run(cmd);
+        release(session);
+        return result;
+    }
+
+    /**
+     * Run a command as root on a pooled session, killing the session if
+     * the command runs longer than timeoutMs
+     */
+    public static CommandResult runSuCommand(String cmd, long timeoutMs) {
+        ShellSession session = acquire();
+        if (session == null) {
+            return CMDProcessor.runSuCommand(cmd, timeoutMs);
+        }
+        CommandResult result = session.run(cmd, timeoutMs);
+        release(session);
+        return result;
+    }
+
+    /**
+     * Run several commands back to back on the same root session,
+     * stopping at the first one that fails.
+     *
+     * @return The results of the commands that were run
+     */
+    public static CommandResult[] runSuCommands(String... cmds) {
+        return runSuCommands(true, cmds);
+    }
+
+    /**
+     * Run several commands back to back on the same root session
+     *
+     * @param stopOnError If true no further commands are run after one fails
+     * @return The results of the commands that were run, in order
+     */
+    public static CommandResult[] runSuCommands(boolean stopOnError, String... cmds) {
+        return runSuCommands(stopOnError, 0, cmds);
+    }
+
+    /**
+     * Run several commands back to back on the same root session, giving
+     * up on each one after timeoutMs
+     *
+     * @param stopOnError If true no further commands are run after one fails
+     * @param timeoutMs How long to wait for each command, or 0 to wait forever
+     * @return The results of the commands that were run, in order
+     */
+    public static CommandResult[] runSuCommands(boolean stopOnError, long timeoutMs,
+            String... cmds) {
+        ArrayList<CommandResult> results = new ArrayList<CommandResult>(cmds.length);
+        ShellSession session = acquire();
+        try {
+            for (String cmd : cmds) {
+                CommandResult r;
+                if (session != null) {
+                    r = session.run(cmd, timeoutMs);
+                } else if (timeoutMs > 0) {
+                    r = CMDProcessor.runSuCommand(cmd, timeoutMs);
+                } else {
+                    r = CMDProcessor.runSuCommand(cmd);
+                }
+                results.add(r);
+                if (stopOnError && !r.success()) {
+                    break;
+                }
+            }
+        } finally {
+            if (session != null) {
+                release(session);
+            }
+        }
+        return results.toArray(new CommandResult[results.size()]);
+    }
+
+    /**
+     * Close every idle session; busy sessions are closed when released
+     */
+    public static void closeAll() {
+        synchronized (sLock) {
+            for (ShellSession session : sIdle) {
+                session.close();
+                sOpenSessions--;
+            }
+            sIdle.clear();
+            // give su another chance next time, the user may have granted it
+            sSuUnavailable = false;
+        }
+    }
+
+    /**
+     * @return An idle live session, or null if root shells are unavailable
+     */
+    static ShellSession acquire() {
+        synchronized (sLock) {
+            while (true) {
+                if (sSuUnavailable) {
+                    return null;
+                }
+                while (!sIdle.isEmpty()) {
+                    ShellSession session = sIdle.remove(sIdle.size() - 1);
+                    if (session.isAlive()) {
+                        return session;
+                    }
+                    session.close();
+                    sOpenSessions--;
+                }
+                if (sOpenSessions < MAX_SESSIONS) {
+                    sOpenSessions++;
+                    break;
+                }
+                try {
+                    sLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+        // open outside the lock, su may show a prompt
+        ShellSession session = new ShellSession("su");
+        if (session.open()) {
+            return session;
+        }
+        Log.w(TAG, "Unable to open a root session, falling back to su -c");
+        session.close();
+        synchronized (sLock) {
+            sOpenSessions--;
+            sSuUnavailable = true;
+            sLock.notifyAll();
+        }
+        return null;
+    }
+
+    static void release(ShellSession session) {
+        synchronized (sLock) {
+            if (session.isAlive()) {
+                sIdle.add(session);
+            } else {
+                session.close();
+                sOpenSessions--;
+            }
+            sLock.notifyAll();
+        }
+    }
+}
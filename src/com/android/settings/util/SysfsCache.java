@@ -0,0 +1,285 @@
+package com.android.settings.util;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Short-lived cache in front of sysfs and procfs reads.
+ *
+ * Preference screens ask for the same handful of files (io scheduler,
+ * /proc/mounts, cpu governors) several times while building, and each
+ * read used to reopen and reparse the file or fork su cat on failure.
+ * Contents are kept for {@link #TTL_MS}; files that could only be read
+ * as root are remembered for {@link #ROOT_TTL_MS} so later reads go
+ * straight to a pooled root shell instead of failing the open first.
+ *
+ * Direct reads go through one reusable direct buffer under a single lock;
+ * root reads run outside it with a timeout, so a slow su can't hold up
+ * the other readers.
+ * Anything that writes one of these files should {@link #invalidate} it.
+ */
+public final class SysfsCache {
+    private static final String TAG = "SysfsCache";
+
+    private static final long TTL_MS = 1000;
+    private static final long ROOT_TTL_MS = 60000;
+    private static final int BUFFER_SIZE = 8192;
+    private static final long ROOT_READ_TIMEOUT_MS = 5000;
+
+    private static final Object sLock = new Object();
+    private static final HashMap<String, Entry> sEntries = new HashMap<String, Entry>();
+    // path -> time until which the file is known to need root
+    private static final HashMap<String, Long> sNeedsRoot = new HashMap<String, Long>();
+    private static final ByteBuffer sBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private static final byte[] sBytes = new byte[BUFFER_SIZE];
+
+    private static int sHits;
+    private static int sMisses;
+
+    private static class Entry {
+        // null if the file could not be read at all
+        String mContent;
+        long mReadAt;
+        // parsed forms, kept while the content doesn't change
+        String[] mLines;
+        String[] mWords;
+    }
+
+    private SysfsCache() {
+        // Cannot instantiate this class
+        throw new AssertionError();
+    }
+
+    /**
+     * @return The whole file, or null if it can't be read even as root
+     */
+    public static String read(String path) {
+        Entry entry = getEntry(path);
+        synchronized (sLock) {
+            return entry.mContent;
+        }
+    }
+
+    /**
+     * @return The first line of the file without its line ending
+     */
+    public static String readOneLine(String path) {
+        String[] lines = readLines(path);
+        return lines == null || lines.length == 0 ? null : lines[0];
+    }
+
+    /**
+     * @return The lines of the file; the array is shared, don't modify it
+     */
+    public static String[] readLines(String path) {
+        Entry entry = getEntry(path);
+        synchronized (sLock) {
+            if (entry.mLines == null && entry.mContent != null) {
+                entry.mLines = entry.mContent.split("\n");
+            }
+            return entry.mLines;
+        }
+    }
+
+    /**
+     * @return The first line split on spaces; the array is shared,
+     *         don't modify it
+     */
+    public static String[] readWords(String path) {
+        Entry entry = getEntry(path);
+        synchronized (sLock) {
+            if (entry.mWords == null && entry.mContent != null) {
+                String line = entry.mContent;
+                int end = line.indexOf('\n');
+                if (end >= 0) {
+                    line = line.substring(0, end);
+                }
+                entry.mWords = line.split(" ");
+            }
+            return entry.mWords;
+        }
+    }
+
+    /**
+     * Read several files at once. Files that need root are fetched
+     * together on one root shell instead of one su per file.
+     *
+     * @return The contents in the same order as paths, null where unreadable
+     */
+    public static String[] readAll(String... paths) {
+        String[] out = new String[paths.length];
+        long now = System.currentTimeMillis();
+        ArrayList<Integer> rootIndexes = new ArrayList<Integer>();
+        synchronized (sLock) {
+            for (int i = 0; i < paths.length; i++) {
+                Entry entry = sEntries.get(paths[i]);
+                if (entry != null && now - entry.mReadAt < TTL_MS) {
+                    sHits++;
+                    out[i] = entry.mContent;
+                    continue;
+                }
+                sMisses++;
+                String content = readDirectOrMarkLocked(paths[i], now);
+                if (content != null) {
+                    out[i] = storeLocked(paths[i], content, now).mContent;
+                } else {
+                    rootIndexes.add(i);
+                }
+            }
+        }
+        if (rootIndexes.isEmpty()) {
+            return out;
+        }
+
+        String[] cmds = new String[rootIndexes.size()];
+        for (int i = 0; i < cmds.length; i++) {
+            cmds[i] = "cat " + paths[rootIndexes.get(i)];
+        }
+        CommandResult[] results = ShellSessionPool.runSuCommands(false, ROOT_READ_TIMEOUT_MS,
+                cmds);
+        synchronized (sLock) {
+            for (int i = 0; i < rootIndexes.size(); i++) {
+                int index = rootIndexes.get(i);
+                String content = i < results.length && results[i].success()
+                        ? results[i].getStdout() : null;
+                out[index] = storeLocked(paths[index], content, now).mContent;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Forget a cached file, call after writing to it
+     */
+    public static void invalidate(String path) {
+        synchronized (sLock) {
+            sEntries.remove(path);
+        }
+    }
+
+    public static void invalidateAll() {
+        synchronized (sLock) {
+            sEntries.clear();
+            sNeedsRoot.clear();
+        }
+    }
+
+    public static String dumpStats() {
+        synchronized (sLock) {
+            return TAG + "{hits=" + sHits + ", misses=" + sMisses
+                    + ", cached=" + sEntries.size() + ", needsRoot=" + sNeedsRoot.size() + '}';
+        }
+    }
+
+    private static Entry getEntry(String path) {
+        long now = System.currentTimeMillis();
+        synchronized (sLock) {
+            Entry entry = sEntries.get(path);
+            if (entry != null && now - entry.mReadAt < TTL_MS) {
+                sHits++;
+                return entry;
+            }
+            sMisses++;
+            String content = readDirectOrMarkLocked(path, now);
+            if (content != null) {
+                return storeLocked(path, content, now);
+            }
+        }
+        // may fork su or wait on a busy shell, don't hold up other readers
+        CommandResult r = ShellSessionPool.runSuCommand("cat " + path, ROOT_READ_TIMEOUT_MS);
+        String content = r.success() ? r.getStdout() : null;
+        synchronized (sLock) {
+            return storeLocked(path, content, now);
+        }
+    }
+
+    /**
+     * @return The file read directly, or null if it needs root; a file
+     *         that can't be opened is remembered as needing root
+     */
+    private static String readDirectOrMarkLocked(String path, long now) {
+        if (needsRootLocked(path, now)) {
+            return null;
+        }
+        try {
+            return readDirectLocked(path);
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to read " + path + ", trying via shell...");
+            sNeedsRoot.put(path, now + ROOT_TTL_MS);
+            return null;
+        }
+    }
+
+    private static Entry storeLocked(String path, String content, long now) {
+        Entry entry = sEntries.get(path);
+        if (entry == null) {
+            entry = new Entry();
+            sEntries.put(path, entry);
+        }
+        // sysfs values rarely change, keep the parsed forms when they don't
+        if (content == null || !content.equals(entry.mContent)) {
+            entry.mContent = content;
+            entry.mLines = null;
+            entry.mWords = null;
+        }
+        entry.mReadAt = now;
+        return entry;
+    }
+
+    private static boolean needsRootLocked(String path, long now) {
+        Long until = sNeedsRoot.get(path);
+        if (until == null) {
+            return false;
+        }
+        if (now >= until) {
+            sNeedsRoot.remove(path);
+            return false;
+        }
+        return true;
+    }
+
+    private static String readDirectLocked(String path) throws IOException {
+        FileInputStream in = new FileInputStream(path);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteArrayOutputStream overflow = null;
+            int total = 0;
+            sBuffer.clear();
+            while (channel.read(sBuffer) != -1) {
+                if (sBuffer.hasRemaining()) {
+                    continue;
+                }
+                // bigger than one buffer (e.g. /proc/mounts), spill over
+                if (overflow == null) {
+                    overflow = new ByteArrayOutputStream(BUFFER_SIZE * 2);
+                }
+                sBuffer.flip();
+                sBuffer.get(sBytes, 0, sBuffer.limit());
+                overflow.write(sBytes, 0, sBuffer.limit());
+                total += sBuffer.limit();
+                sBuffer.clear();
+            }
+            sBuffer.flip();
+            int len = sBuffer.limit();
+            sBuffer.get(sBytes, 0, len);
+            if (overflow == null) {
+                return new String(sBytes, 0, len, "UTF-8");
+            }
+            overflow.write(sBytes, 0, len);
+            return new String(overflow.toByteArray(), 0, total + len, "UTF-8");
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+                // failed to close reader
+            }
+        }
+    }
+}
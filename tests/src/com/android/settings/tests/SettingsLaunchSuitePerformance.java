@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.tests;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Instrumentation that measures launch latency of the main Settings screens.
+ *
+ * Each activity is launched "iterations" times (default 5). The first launch
+ * of an activity is reported as first_run, the rest as warm. Settings is
+ * already running in the instrumented process, so first_run is not a cold
+ * start; it only includes the one-time work of that activity. For every
+ * launch it records the time until the activity is idle, the time until
+ * its first list shows rows, and the frames drawn in that window.
+ * Per-activity min/median/max land in the results bundle and the raw
+ * samples are written as JSON to "output" (default
+ * /sdcard/settings_launch_perf.json). A list that never showed rows is
+ * recorded as -1 and counted as a timeout rather than in the statistics.
+ *
+ * adb shell am instrument -w [-e iterations 10] \
+ *     com.android.settings.tests/.SettingsLaunchSuitePerformance
+ */
+public class SettingsLaunchSuitePerformance extends Instrumentation {
+
+    public static final String LOG_TAG = "SettingsLaunchSuitePerformance";
+
+    private static final String[] ACTIVITIES = {
+        "com.android.settings.Settings",
+        "com.android.settings.Settings$WifiSettingsActivity",
+        "com.android.settings.Settings$ManageApplicationsActivity",
+        "com.android.settings.Settings$StorageSettingsActivity",
+        "com.android.settings.Settings$DataUsageSummaryActivity",
+        "com.android.settings.Settings$PowerUsageSummaryActivity",
+        "com.android.settings.Settings$RunningServicesActivity",
+        "com.android.settings.Settings$DisplaySettingsActivity",
+        "com.android.settings.Settings$SoundSettingsActivity",
+        "com.android.settings.Settings$DeviceInfoSettingsActivity",
+    };
+
+    private static final int DEFAULT_ITERATIONS = 5;
+    // give up waiting for list rows after this long
+    private static final long LIST_TIMEOUT_MS = 10000;
+    private static final long POLL_INTERVAL_MS = 16;
+
+    private final Bundle mResults = new Bundle();
+    private int mIterations = DEFAULT_ITERATIONS;
+    private String mOutputPath;
+
+    private class FrameCounter implements Choreographer.FrameCallback {
+        int mFrames;
+        boolean mRunning;
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mRunning) {
+                mFrames++;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+    }
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        if (arguments != null) {
+            String iterations = arguments.getString("iterations");
+            if (iterations != null) {
+                mIterations = Math.max(1, Integer.parseInt(iterations));
+            }
+            mOutputPath = arguments.getString("output");
+        }
+        if (mOutputPath == null) {
+            mOutputPath = new File(Environment.getExternalStorageDirectory(),
+                    "settings_launch_perf.json").getPath();
+        }
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        StringBuilder json = new StringBuilder("{\"iterations\":").append(mIterations)
+                .append(",\"activities\":[");
+        for (int a = 0; a < ACTIVITIES.length; a++) {
+            long[] launch = new long[mIterations];
+            long[] list = new long[mIterations];
+            int[] frames = new int[mIterations];
+            for (int i = 0; i < mIterations; i++) {
+                measureLaunch(ACTIVITIES[a], i, launch, list, frames);
+            }
+            String name = ACTIVITIES[a].substring(ACTIVITIES[a].lastIndexOf('.') + 1);
+            report(name, launch, list, frames);
+            if (a > 0) {
+                json.append(',');
+            }
+            json.append("{\"name\":\"").append(name).append('"');
+            appendArray(json, "launch_ms", launch);
+            appendArray(json, "first_list_ms", list);
+            json.append(",\"frames\":").append(Arrays.toString(frames).replace(" ", ""));
+            json.append('}');
+        }
+        json.append("]}");
+        writeOutput(json.toString());
+        finish(Activity.RESULT_OK, mResults);
+    }
+
+    private void measureLaunch(String className, int iteration,
+            long[] launch, long[] list, int[] frames) {
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.setClassName(getTargetContext(), className);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
+
+        final FrameCounter counter = new FrameCounter();
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                counter.mRunning = true;
+                Choreographer.getInstance().postFrameCallback(counter);
+            }
+        });
+
+        long start = SystemClock.uptimeMillis();
+        final Activity activity = startActivitySync(intent);
+        launch[iteration] = SystemClock.uptimeMillis() - start;
+
+        list[iteration] = -1;
+        final boolean[] populated = new boolean[1];
+        while (SystemClock.uptimeMillis() - start < LIST_TIMEOUT_MS) {
+            runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    populated[0] = hasListRows(activity.getWindow().getDecorView());
+                }
+            });
+            if (populated[0]) {
+                list[iteration] = SystemClock.uptimeMillis() - start;
+                break;
+            }
+            SystemClock.sleep(POLL_INTERVAL_MS);
+        }
+
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                counter.mRunning = false;
+                activity.finish();
+            }
+        });
+        frames[iteration] = counter.mFrames;
+        waitForIdleSync();
+        Log.i(LOG_TAG, className + " #" + iteration + ": launch=" + launch[iteration]
+                + "ms list=" + list[iteration] + "ms frames=" + frames[iteration]);
+    }
+
+    private static boolean hasListRows(View view) {
+        if (view instanceof AbsListView) {
+            return ((AbsListView) view).getChildCount() > 0;
+        }
+        if (view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            for (int i = 0; i < group.getChildCount(); i++) {
+                if (hasListRows(group.getChildAt(i))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void report(String name, long[] launch, long[] list, int[] frames) {
+        mResults.putLong(name + "_first_run_launch_ms", launch[0]);
+        if (list[0] >= 0) {
+            mResults.putLong(name + "_first_run_first_list_ms", list[0]);
+        } else {
+            mResults.putBoolean(name + "_first_run_first_list_timeout", true);
+        }
+        mResults.putInt(name + "_first_run_frames", frames[0]);
+        if (launch.length > 1) {
+            long[] warmLaunch = Arrays.copyOfRange(launch, 1, launch.length);
+            long[] warmList = withoutTimeouts(list, 1);
+            Arrays.sort(warmLaunch);
+            Arrays.sort(warmList);
+            mResults.putLong(name + "_warm_launch_min_ms", warmLaunch[0]);
+            mResults.putLong(name + "_warm_launch_median_ms", warmLaunch[warmLaunch.length / 2]);
+            mResults.putLong(name + "_warm_launch_max_ms", warmLaunch[warmLaunch.length - 1]);
+            if (warmList.length > 0) {
+                mResults.putLong(name + "_warm_first_list_median_ms",
+                        warmList[warmList.length / 2]);
+            }
+            mResults.putInt(name + "_warm_first_list_timeouts",
+                    list.length - 1 - warmList.length);
+        }
+    }
+
+    /**
+     * @return The samples from index start on that didn't time out
+     */
+    private static long[] withoutTimeouts(long[] samples, int start) {
+        long[] result = new long[samples.length - start];
+        int count = 0;
+        for (int i = start; i < samples.length; i++) {
+            if (samples[i] >= 0) {
+                result[count++] = samples[i];
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static void appendArray(StringBuilder json, String key, long[] values) {
+        json.append(",\"").append(key).append("\":")
+                .append(Arrays.toString(values).replace(" ", ""));
+    }
+
+    private void writeOutput(String json) {
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(mOutputPath);
+            writer.write(json);
+            mResults.putString("output", mOutputPath);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write results to " + mOutputPath, e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                    // let it go
+                }
+            }
+        }
+    }
+}